@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,6 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
 	}
 
 	/**
@@ -119,28 +116,94 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Skip ahead to the next pending interrupt. Called with interrupts
+	 * disabled when no thread can run until an interrupt occurs. Advances the
+	 * simulated time, in whole kernel ticks, to the last tick before the next
+	 * interrupt is due, so that the interrupt occurs the next time interrupts
+	 * are enabled. This leaves <tt>Stats</tt> exactly as if the caller had
+	 * enabled and disabled interrupts in a loop until then, but takes
+	 * constant time.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		// the trace prints every tick, so take them one at a time
+		if (Lib.test(dbgInt) || nextInterruptTime == Long.MAX_VALUE)
+			return;
+
+		long ticks = nextInterruptTime - privilege.stats.totalTicks;
+		long count = (ticks + Stats.KernelTick - 1) / Stats.KernelTick - 1;
+
+		if (count > 0) {
+			privilege.stats.kernelTicks += Stats.KernelTick * count;
+			privilege.stats.totalTicks += Stats.KernelTick * count;
+		}
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		int slot = allocateSlot();
+		times[slot] = time;
+		ids[slot] = numPendingInterruptsCreated++;
+		types[slot] = type;
+		handlers[slot] = handler;
+
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, numPending * 2);
+
+		pending[numPending] = slot;
+		siftUp(numPending++);
+
+		nextInterruptTime = times[pending[0]];
+	}
+
+	private boolean cancel(Runnable handler) {
+		for (int i = 0; i < numPending; i++) {
+			int slot = pending[i];
+			if (handlers[slot] != handler)
+				continue;
+
+			Lib.debug(dbgInt, "Cancelling the " + types[slot]
+					+ " interrupt handler at time = " + times[slot]);
+
+			pending[i] = pending[--numPending];
+			if (i < numPending) {
+				siftDown(i);
+				siftUp(i);
+			}
+			freeSlot(slot);
+
+			nextInterruptTime = (numPending == 0) ? Long.MAX_VALUE
+					: times[pending[0]];
+			return true;
+		}
+
+		return false;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
 		Stats stats = privilege.stats;
 
+		Lib.assertTrue(count > 0);
+
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += Stats.KernelTick * count;
+			stats.totalTicks += Stats.KernelTick * count;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += Stats.UserTick * count;
+			stats.totalTicks += Stats.UserTick * count;
 		}
 
 		if (Lib.test(dbgInt))
@@ -151,6 +214,10 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long nextInterruptTime() {
+		return nextInterruptTime;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,29 +226,30 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextInterruptTime > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (numPending > 0 && times[pending[0]] <= time) {
+			int next = removeFirst();
+			String type = types[next];
+			Runnable handler = handlers[next];
+			freeSlot(next);
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
+		if (numPending == 0)
+			nextInterruptTime = Long.MAX_VALUE;
+		else
+			nextInterruptTime = times[pending[0]];
+
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
@@ -190,46 +258,95 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// the heap is only partially ordered, so sort a copy
+		int[] sorted = Arrays.copyOf(pending, numPending);
+		for (int i = 1; i < numPending; i++) {
+			int slot = sorted[i];
+			int j = i;
+			for (; j > 0 && before(slot, sorted[j - 1]); j--)
+				sorted[j] = sorted[j - 1];
+			sorted[j] = slot;
+		}
+
+		for (int i = 0; i < numPending; i++) {
+			System.out.println("  " + types[sorted[i]] + ", scheduled at "
+					+ times[sorted[i]]);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	// true if the interrupt in slot1 occurs before the one in slot2
+	private boolean before(int slot1, int slot2) {
+		if (times[slot1] != times[slot2])
+			return times[slot1] < times[slot2];
+		else
+			return ids[slot1] < ids[slot2];
+	}
+
+	private void siftUp(int i) {
+		int slot = pending[i];
+
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(slot, pending[parent]))
+				break;
+
+			pending[i] = pending[parent];
+			i = parent;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+		pending[i] = slot;
+	}
+
+	private void siftDown(int i) {
+		int slot = pending[i];
+
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numPending)
+				break;
+			if (child + 1 < numPending && before(pending[child + 1], pending[child]))
+				child++;
+			if (!before(pending[child], slot))
+				break;
+
+			pending[i] = pending[child];
+			i = child;
 		}
 
-		long time;
+		pending[i] = slot;
+	}
+
+	private int removeFirst() {
+		int first = pending[0];
+
+		pending[0] = pending[--numPending];
+		if (numPending > 0)
+			siftDown(0);
 
-		String type;
+		return first;
+	}
+
+	private int allocateSlot() {
+		if (numFreeSlots > 0)
+			return freeSlots[--numFreeSlots];
+
+		if (numSlots == times.length) {
+			times = Arrays.copyOf(times, numSlots * 2);
+			ids = Arrays.copyOf(ids, numSlots * 2);
+			types = Arrays.copyOf(types, numSlots * 2);
+			handlers = Arrays.copyOf(handlers, numSlots * 2);
+			freeSlots = Arrays.copyOf(freeSlots, numSlots * 2);
+		}
 
-		Runnable handler;
+		return numSlots++;
+	}
 
-		private long id;
+	private void freeSlot(int slot) {
+		types[slot] = null;
+		handlers[slot] = null;
+		freeSlots[numFreeSlots++] = slot;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +355,38 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * Pending interrupts are stored in a binary heap of slot numbers, ordered
+	 * by time and then by the order in which they were scheduled, so
+	 * interrupts due at the same time occur in FIFO order. The time, type and
+	 * handler of each interrupt are kept in parallel arrays indexed by slot,
+	 * and slots are reused once their interrupt has occurred, so scheduling
+	 * an interrupt does not allocate.
+	 */
+	private int[] pending = new int[initialSlots];
+
+	private int numPending = 0;
+
+	/** The time of the first element of <tt>pending</tt>. */
+	private long nextInterruptTime = Long.MAX_VALUE;
+
+	private long[] times = new long[initialSlots];
+
+	private long[] ids = new long[initialSlots];
+
+	private String[] types = new String[initialSlots];
+
+	private Runnable[] handlers = new Runnable[initialSlots];
+
+	/** Slots that have been used before and are free again. */
+	private int[] freeSlots = new int[initialSlots];
+
+	private int numFreeSlots = 0;
+
+	/** Number of slots ever used. */
+	private int numSlots = 0;
+
+	private static final int initialSlots = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -247,8 +395,20 @@ public final class Interrupt {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public boolean cancel(Runnable handler) {
+			return Interrupt.this.cancel(handler);
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long nextInterruptTime() {
+			return Interrupt.this.nextInterruptTime();
+		}
 	}
 }
@@ -187,6 +187,16 @@ public final class Machine {
 			bank = new ElevatorBank(privilege);
 
 		if (Config.getBoolean("Machine.processor")) {
+			/*
+			 * Only one simulated CPU is supported. Interrupt, Timer and TCB
+			 * all assume a single thread of control, and the kernel relies on
+			 * disabling interrupts for mutual exclusion, so more CPUs would
+			 * need per-CPU versions of all of them, not just more Processors.
+			 */
+			int numCPUs = Config.getInteger("Processor.numCPUs", 1);
+			Lib.assertTrue(numCPUs == 1, "Processor.numCPUs = " + numCPUs
+					+ ": only a single simulated CPU is supported");
+
 			if (numPhysPages == -1)
 				numPhysPages = Config.getInteger("Processor.numPhysPages");
 			processor = new Processor(privilege, numPhysPages);
@@ -324,6 +334,15 @@ public final class Machine {
 		return timer;
 	}
 
+	/**
+	 * Count a job of a periodic thread that missed its deadline. The hardware
+	 * has no notion of deadlines, so the scheduler reports them here, to be
+	 * printed with the other statistics when the machine halts.
+	 */
+	public static void recordDeadlineMiss() {
+		stats.numDeadlineMisses++;
+	}
+
 	/**
 	 * Return the hardware elevator bank.
 	 * 
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,6 +42,13 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter")
+				|| engine.equals("handlers") || engine.equals("block"),
+				"unknown Processor.engine " + engine);
+		usingHandlers = !engine.equals("interpreter");
+		usingBlocks = engine.equals("block");
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
@@ -47,10 +56,31 @@ public final class Processor {
 
 		mainMemory = new byte[pageSize * numPhysPages];
 
+		// disassembly needs the full decode of every instruction
+		if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble))
+			decodedPages = null;
+		else
+			decodedPages = new DecodedPage[numPhysPages];
+
+		if (decodedPages == null)
+			usingHandlers = false;
+
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			int numBuckets = 1;
+			while (numBuckets < tlbSize * 2)
+				numBuckets *= 2;
+
+			tlbBuckets = new int[numBuckets];
+			tlbNext = new int[tlbSize];
+			Arrays.fill(tlbBuckets, -1);
 		}
 		else {
 			translations = null;
@@ -93,16 +123,92 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// the block engine relies on the predecoded instruction cache
+		if (usingBlocks && decodedPages != null)
+			runBlocks(inst);
+
+		while (true) {
+			// run up to the next interrupt, then charge the ticks at once
+			int budget = instructionsUntilInterrupt();
+			int count = 0;
+
+			try {
+				do {
+					inst.run();
+					count++;
+				} while (count < budget);
+			}
+			catch (MipsException e) {
+				if (count > 0)
+					privilege.interrupt.tick(false, count);
+
+				e.handle();
+				count = 1;
+			}
+
+			privilege.interrupt.tick(false, count);
+		}
+	}
+
+	/**
+	 * Return how many user instructions can run before the next pending
+	 * interrupt is due. Their ticks can then be charged with a single call to
+	 * <tt>tick()</tt> without delaying any interrupt.
+	 */
+	private int instructionsUntilInterrupt() {
+		// keep the per-tick trace identical to one tick per instruction
+		if (Lib.test(dbgInt))
+			return 1;
+
+		long ticks = privilege.interrupt.nextInterruptTime()
+				- privilege.stats.totalTicks;
+		long budget = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+
+		return (int) Math.max(1, Math.min(budget, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Execute instructions one basic block at a time. Each block lies within a
+	 * single physical page and ends with a control transfer and its delay
+	 * slot, or with a syscall. The PC is translated once per block, and the
+	 * user ticks for the whole block are charged at once, so a block is cut
+	 * short whenever an interrupt will become due before it ends. Never
+	 * returns.
+	 */
+	private void runBlocks(Instruction inst) {
+		Instruction scanner = new Instruction();
+
 		while (true) {
+			int count = 0;
+
 			try {
-				inst.run();
+				int pc = registers[regPC];
+				int paddr = translate(pc, 4, false);
+				int index = (paddr % pageSize) / 4;
+				DecodedPage page = getDecodedPage(paddr / pageSize);
+
+				int length = Math.min(page.blockLength(index, scanner),
+						instructionsUntilInterrupt());
+
+				do {
+					inst.run(page, index, paddr);
+
+					count++;
+					index++;
+					paddr += 4;
+					pc += 4;
+				} while (count < length && registers[regPC] == pc);
 			}
 			catch (MipsException e) {
-		
+				// charge the instructions that completed before the exception
+				if (count > 0)
+					privilege.interrupt.tick(false, count);
+
 				e.handle();
+				count = 1;
 			}
 
-			privilege.interrupt.tick(false);
+			privilege.interrupt.tick(false, count);
 		}
 	}
 
@@ -178,6 +284,31 @@ public final class Processor {
 		this.translations = pageTable;
 	}
 
+	/**
+	 * Return the address space ID of the current process.
+	 * 
+	 * @return the current address space ID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Set the address space ID of the current process. From now on, a TLB
+	 * entry only matches a virtual page if its <tt>asid</tt> field is equal to
+	 * the specified ID, so the TLB does not need to be flushed on a context
+	 * switch.
+	 * 
+	 * @param asid the address space ID of the process about to run.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		this.asid = asid;
+	}
+
 	/**
 	 * Return the number of entries in this processor's TLB.
 	 * 
@@ -207,7 +338,10 @@ public final class Processor {
 	 * 
 	 * <p>
 	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * does not affect anything. Entries are looked up by hashing their
+	 * <tt>asid</tt> and <tt>vpn</tt> fields, so the number of entries can be
+	 * made large (see <tt>Processor.tlbSize</tt>) without slowing down
+	 * translation.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -216,7 +350,31 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		TranslationEntry old = translations[number];
+		if (old.valid) {
+			int bucket = tlbHash(old.asid, old.vpn);
+			if (tlbBuckets[bucket] == number) {
+				tlbBuckets[bucket] = tlbNext[number];
+			}
+			else {
+				int i = tlbBuckets[bucket];
+				while (tlbNext[i] != number)
+					i = tlbNext[i];
+				tlbNext[i] = tlbNext[number];
+			}
+		}
+
 		translations[number] = new TranslationEntry(entry);
+
+		if (entry.valid) {
+			int bucket = tlbHash(entry.asid, entry.vpn);
+			tlbNext[number] = tlbBuckets[bucket];
+			tlbBuckets[bucket] = number;
+		}
+	}
+
+	private int tlbHash(int asid, int vpn) {
+		return (vpn * 31 + asid) & (tlbBuckets.length - 1);
 	}
 
 	/**
@@ -239,6 +397,36 @@ public final class Processor {
 		return mainMemory;
 	}
 
+	/**
+	 * Discard any predecoded instructions cached for the specified physical
+	 * page. The processor caches the decoded form of each instruction it
+	 * executes, so this must be called whenever the kernel changes the
+	 * contents of a page of main memory directly (for example when loading a
+	 * COFF section, swapping a page in, or copying syscall data into user
+	 * memory). Stores executed by the processor invalidate the cache
+	 * automatically.
+	 * 
+	 * @param ppn the physical page whose contents have changed.
+	 */
+	public void invalidatePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		if (decodedPages != null && decodedPages[ppn] != null)
+			decodedPages[ppn].invalidate();
+	}
+
+	/**
+	 * Return the predecoded instructions for the specified physical page,
+	 * allocating them if this is the first fetch from the page.
+	 */
+	private DecodedPage getDecodedPage(int ppn) {
+		DecodedPage page = decodedPages[ppn];
+		if (page == null)
+			page = decodedPages[ppn] = new DecodedPage(ppn);
+
+		return page;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -301,7 +489,7 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw mipsException.signal(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -316,15 +504,15 @@ public final class Processor {
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw mipsException.signal(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries that hash to the same bucket
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			for (int i = tlbBuckets[tlbHash(asid, vpn)]; i != -1; i = tlbNext[i]) {
+				if (translations[i].vpn == vpn && translations[i].asid == asid) {
 					entry = translations[i];
 					break;
 				}
@@ -332,21 +520,21 @@ public final class Processor {
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw mipsException.signal(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw mipsException.signal(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw mipsException.signal(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -404,7 +592,12 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		if (decodedPages != null && decodedPages[paddr / pageSize] != null)
+			decodedPages[paddr / pageSize].invalidate();
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
 	}
 
 	/**
@@ -554,6 +747,18 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** The address space ID that TLB entries must match. */
+	private int asid = 0;
+
+	/**
+	 * The first valid TLB entry in each hash bucket, or -1 if the bucket is
+	 * empty.
+	 */
+	private int[] tlbBuckets;
+
+	/** The next valid TLB entry in the same hash bucket as each entry. */
+	private int[] tlbNext;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -572,6 +777,25 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Predecoded instructions for each physical page, allocated the first
+	 * time an instruction is fetched from the page. <tt>null</tt> if
+	 * predecoding is disabled.
+	 */
+	private DecodedPage[] decodedPages;
+
+	/** The exception thrown whenever an instruction raises a user exception. */
+	private MipsException mipsException = new MipsException();
+
+	/**
+	 * <tt>true</tt> if common instructions are executed by per-opcode
+	 * handlers rather than <tt>Instruction.execute()</tt>.
+	 */
+	private boolean usingHandlers;
+
+	/** <tt>true</tt> if instructions are executed a basic block at a time. */
+	private boolean usingBlocks;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -581,6 +805,9 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	// Interrupt prints every tick when this is set
+	private static final char dbgInt = 'i';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
   @Override
 		public void flushPipe() {
@@ -588,26 +815,55 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * A user exception raised by the current instruction. The processor only
+	 * ever raises one exception at a time, so a single instance without a
+	 * stack trace is reused for every exception rather than allocating one
+	 * per page fault, TLB miss or syscall.
+	 */
 	private class MipsException extends Exception {
-		public MipsException(int cause) {
+		public MipsException() {
+			super(null, null, false, false);
+		}
+
+		/**
+		 * Prepare this exception to be thrown with the specified cause.
+		 * 
+		 * @return this exception.
+		 */
+		public MipsException signal(int cause) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 			this.cause = cause;
+			hasBadVAddr = false;
+			return this;
 		}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		/**
+		 * Prepare this exception to be thrown with the specified cause and
+		 * bad virtual address.
+		 * 
+		 * @return this exception.
+		 */
+		public MipsException signal(int cause, int badVAddr) {
+			signal(cause);
 
 			hasBadVAddr = true;
 			this.badVAddr = badVAddr;
+			return this;
 		}
 
 		public void handle() {
+			// the handler may switch to a thread that reuses this exception
+			int cause = this.cause;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
 				writeRegister(regBadVAddr, badVAddr);
 
+			privilege.stats.numExceptions++;
+
 			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
 				System.out.println("exception: " + exceptionNames[cause]);
 
@@ -627,10 +883,300 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
+	/**
+	 * Executes one kind of predecoded instruction directly on the register
+	 * file, replacing <tt>Instruction.decode()</tt>, <tt>execute()</tt> and
+	 * <tt>writeBack()</tt>. Each handler has the same effect, including load
+	 * delays, branch delays and exceptions, as the general path.
+	 */
+	private interface Handler {
+		void run(Instruction inst) throws MipsException;
+	}
+
+	/**
+	 * Return the handler for a decoded instruction, or <tt>null</tt> if it is
+	 * rare or complicated enough to be left to <tt>Instruction.execute()</tt>
+	 * (multiply, divide, unaligned loads and stores, syscalls and invalid
+	 * instructions).
+	 */
+	private Handler getHandler(Instruction inst) {
+		boolean imm = inst.test(Mips.SRC2IMM);
+
+		switch (inst.operation) {
+		case Mips.ADD:
+			if (inst.test(Mips.OVERFLOW))
+				return imm ? addi : add;
+			return imm ? addiu : addu;
+		case Mips.SUB:
+			return inst.test(Mips.OVERFLOW) ? sub : subu;
+		case Mips.SLL:
+			return inst.test(Mips.SRC1SH) ? sll : sllv;
+		case Mips.SRA:
+		case Mips.SRL:
+			// like execute(), srl shifts in copies of the sign bit
+			return inst.test(Mips.SRC1SH) ? sra : srav;
+		case Mips.SLT:
+			if (inst.test(Mips.UNSIGNED))
+				return imm ? sltiu : sltu;
+			return imm ? slti : slt;
+		case Mips.AND:
+			return imm ? andi : and;
+		case Mips.OR:
+			return imm ? ori : or;
+		case Mips.XOR:
+			return imm ? xori : xor;
+		case Mips.NOR:
+			return nor;
+		case Mips.LUI:
+			return lui;
+		case Mips.MFLO:
+			return mflo;
+		case Mips.MFHI:
+			return mfhi;
+		case Mips.MTLO:
+			return mtlo;
+		case Mips.MTHI:
+			return mthi;
+		case Mips.BEQ:
+			return beq;
+		case Mips.BNE:
+			return bne;
+		case Mips.BLEZ:
+			return blez;
+		case Mips.BGTZ:
+			return bgtz;
+		case Mips.BLTZ:
+			return inst.test(Mips.LINK) ? bltzal : bltz;
+		case Mips.BGEZ:
+			return inst.test(Mips.LINK) ? bgezal : bgez;
+		case Mips.JUMP:
+			if (inst.format == Mips.JFMT)
+				return inst.test(Mips.LINK) ? jal : j;
+			return inst.test(Mips.LINK) ? jalr : jr;
+		case Mips.LOAD:
+			if (inst.size == 4)
+				return lw;
+			if (inst.test(Mips.UNSIGNED))
+				return inst.size == 1 ? lbu : lhu;
+			return inst.size == 1 ? lb : lh;
+		case Mips.STORE:
+			return store;
+		default:
+			return null;
+		}
+	}
+
+	// Operands must be read before finishing the previous delayed load, so
+	// the handlers compute their result first and then call one of these.
+
+	private void next() {
+		finishLoad();
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	private void writeResult(Instruction inst, int result) {
+		finishLoad();
+
+		if (inst.dstReg != 0)
+			registers[inst.dstReg] = result;
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	private void writeChecked(Instruction inst, long result)
+			throws MipsException {
+		// exactly the same overflow test as writeBack()
+		if (Lib.test(result, 31) != Lib.test(result, 32))
+			throw mipsException.signal(exceptionOverflow);
+
+		writeResult(inst, (int) result);
+	}
+
+	private void load(Instruction inst, int value) {
+		delayedLoad(inst.dstReg, value, 0xFFFFFFFF);
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	private void branch(Instruction inst, boolean taken) {
+		finishLoad();
+
+		if (taken)
+			advancePC(registers[regNextPC] + (inst.imm << 2));
+		else
+			advancePC(registers[regNextPC] + 4);
+	}
+
+	private void branchAndLink(Instruction inst, boolean taken) {
+		finishLoad();
+
+		registers[regRA] = registers[regNextPC] + 4;
+		branch(inst, taken);
+	}
+
+	private void jump(int target, int linkReg) {
+		finishLoad();
+
+		if (linkReg != 0)
+			registers[linkReg] = registers[regNextPC] + 4;
+
+		advancePC(target);
+	}
+
+	private final Handler add = inst -> writeChecked(inst,
+			(long) registers[inst.rs] + registers[inst.rt]);
+
+	private final Handler addi = inst -> writeChecked(inst,
+			(long) registers[inst.rs] + inst.imm);
+
+	private final Handler addu = inst -> writeResult(inst,
+			registers[inst.rs] + registers[inst.rt]);
+
+	private final Handler addiu = inst -> writeResult(inst,
+			registers[inst.rs] + inst.imm);
+
+	private final Handler sub = inst -> writeChecked(inst,
+			(long) registers[inst.rs] - registers[inst.rt]);
+
+	private final Handler subu = inst -> writeResult(inst,
+			registers[inst.rs] - registers[inst.rt]);
+
+	private final Handler sll = inst -> writeResult(inst,
+			registers[inst.rt] << inst.sh);
+
+	private final Handler sllv = inst -> writeResult(inst,
+			registers[inst.rt] << (registers[inst.rs] & 0x1F));
+
+	private final Handler sra = inst -> writeResult(inst,
+			registers[inst.rt] >> inst.sh);
+
+	private final Handler srav = inst -> writeResult(inst,
+			registers[inst.rt] >> (registers[inst.rs] & 0x1F));
+
+	private final Handler slt = inst -> writeResult(inst,
+			registers[inst.rs] < registers[inst.rt] ? 1 : 0);
+
+	private final Handler slti = inst -> writeResult(inst,
+			registers[inst.rs] < inst.imm ? 1 : 0);
+
+	private final Handler sltu = inst -> writeResult(inst, Integer
+			.compareUnsigned(registers[inst.rs], registers[inst.rt]) < 0 ? 1 : 0);
+
+	private final Handler sltiu = inst -> writeResult(inst, Integer
+			.compareUnsigned(registers[inst.rs], inst.imm) < 0 ? 1 : 0);
+
+	private final Handler and = inst -> writeResult(inst,
+			registers[inst.rs] & registers[inst.rt]);
+
+	private final Handler andi = inst -> writeResult(inst,
+			registers[inst.rs] & inst.imm);
+
+	private final Handler or = inst -> writeResult(inst,
+			registers[inst.rs] | registers[inst.rt]);
+
+	private final Handler ori = inst -> writeResult(inst,
+			registers[inst.rs] | inst.imm);
+
+	private final Handler xor = inst -> writeResult(inst,
+			registers[inst.rs] ^ registers[inst.rt]);
+
+	private final Handler xori = inst -> writeResult(inst,
+			registers[inst.rs] ^ inst.imm);
+
+	private final Handler nor = inst -> writeResult(inst,
+			~(registers[inst.rs] | registers[inst.rt]));
+
+	private final Handler lui = inst -> writeResult(inst, inst.imm << 16);
+
+	private final Handler mflo = inst -> writeResult(inst, registers[regLo]);
+
+	private final Handler mfhi = inst -> writeResult(inst, registers[regHi]);
+
+	private final Handler mtlo = inst -> {
+		registers[regLo] = registers[inst.rs];
+		next();
+	};
+
+	private final Handler mthi = inst -> {
+		registers[regHi] = registers[inst.rs];
+		next();
+	};
+
+	private final Handler beq = inst -> branch(inst,
+			registers[inst.rs] == registers[inst.rt]);
+
+	private final Handler bne = inst -> branch(inst,
+			registers[inst.rs] != registers[inst.rt]);
+
+	private final Handler blez = inst -> branch(inst, registers[inst.rs] <= 0);
+
+	private final Handler bgtz = inst -> branch(inst, registers[inst.rs] > 0);
+
+	private final Handler bltz = inst -> branch(inst, registers[inst.rs] < 0);
+
+	private final Handler bgez = inst -> branch(inst, registers[inst.rs] >= 0);
+
+	private final Handler bltzal = inst -> branchAndLink(inst,
+			registers[inst.rs] < 0);
+
+	private final Handler bgezal = inst -> branchAndLink(inst,
+			registers[inst.rs] >= 0);
+
+	private final Handler j = inst -> jump((registers[regNextPC] & 0xF0000000)
+			| (inst.target << 2), 0);
+
+	private final Handler jal = inst -> jump(
+			(registers[regNextPC] & 0xF0000000) | (inst.target << 2), regRA);
+
+	private final Handler jr = inst -> jump(registers[inst.rs], 0);
+
+	private final Handler jalr = inst -> jump(registers[inst.rs], inst.dstReg);
+
+	private final Handler lw = inst -> load(inst,
+			readMem(registers[inst.rs] + inst.imm, 4));
+
+	private final Handler lh = inst -> load(inst,
+			Lib.extend(readMem(registers[inst.rs] + inst.imm, 2), 0, 16));
+
+	private final Handler lhu = inst -> load(inst,
+			readMem(registers[inst.rs] + inst.imm, 2));
+
+	private final Handler lb = inst -> load(inst,
+			Lib.extend(readMem(registers[inst.rs] + inst.imm, 1), 0, 8));
+
+	private final Handler lbu = inst -> load(inst,
+			readMem(registers[inst.rs] + inst.imm, 1));
+
+	private final Handler store = inst -> {
+		writeMem(registers[inst.rs] + inst.imm, inst.size, registers[inst.rt]);
+		next();
+	};
+
 	private class Instruction {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
 			fetch();
+			if (handler != null) {
+				handler.run(this);
+				return;
+			}
+
+			decode();
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Execute the instruction at the specified physical address, which
+		 * the caller has already translated from the current PC.
+		 */
+		public void run(DecodedPage page, int index, int paddr)
+				throws MipsException {
+			fetch(page, index, paddr);
+			if (handler != null) {
+				handler.run(this);
+				return;
+			}
+
 			decode();
 			execute();
 			writeBack();
@@ -646,10 +1192,83 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (decodedPages == null) {
+				value = readMem(registers[regPC], 4);
+				page = null;
+				handler = null;
+				return;
+			}
+
+			int paddr = translate(registers[regPC], 4, false);
+
+			fetch(getDecodedPage(paddr / pageSize), (paddr % pageSize) / 4,
+					paddr);
+		}
+
+		private void fetch(DecodedPage page, int index, int paddr) {
+			this.page = page;
+			this.index = index;
+
+			if (!page.load(index, this)) {
+				value = Lib.bytesToInt(mainMemory, paddr);
+				handler = null;
+			}
 		}
 
 		private void decode() {
+			if (page == null || !page.isDecoded(index)) {
+				decodeWord();
+
+				if (page != null)
+					page.store(index, this);
+			}
+
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
+			// get jtarget
+			if (format == Mips.RFMT)
+				jtarget = registers[rs];
+			else if (format == Mips.IFMT)
+				jtarget = registers[regNextPC] + (imm << 2);
+			else if (format == Mips.JFMT)
+				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+			else
+				jtarget = -1;
+
+			// get addr
+			addr = registers[rs] + imm;
+
+			// get src1
+			if (test(Mips.SRC1SH))
+				src1 = sh;
+			else
+				src1 = registers[rs];
+
+			// get src2
+			if (test(Mips.SRC2IMM))
+				src2 = imm;
+			else
+				src2 = registers[rt];
+
+			if (test(Mips.UNSIGNED)) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+				print();
+		}
+
+		/**
+		 * Decode the fields of the instruction word in <tt>value</tt> that do
+		 * not depend on the contents of any register. The results may be
+		 * cached in a <tt>DecodedPage</tt>.
+		 */
+		private void decodeWord() {
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -677,9 +1296,6 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
 			if (test(Mips.SIZEB))
 				size = 1;
@@ -690,9 +1306,6 @@ public final class Processor {
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
 			if (test(Mips.DSTRA))
 				dstReg = regRA;
@@ -703,43 +1316,12 @@ public final class Processor {
 			else
 				dstReg = -1;
 
-			// get jtarget
-			if (format == Mips.RFMT)
-				jtarget = registers[rs];
-			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
-			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
-			else
-				jtarget = -1;
-
-			// get imm
+			// get imm (branches are never unsigned, so jtarget is unaffected)
 			if (test(Mips.UNSIGNED)) {
 				imm &= 0xFFFF;
 			}
 
-			// get addr
-			addr = registers[rs] + imm;
-
-			// get src1
-			if (test(Mips.SRC1SH))
-				src1 = sh;
-			else
-				src1 = registers[rs];
-
-			// get src2
-			if (test(Mips.SRC2IMM))
-				src2 = imm;
-			else
-				src2 = registers[rt];
-
-			if (test(Mips.UNSIGNED)) {
-				src1 &= 0xFFFFFFFFL;
-				src2 &= 0xFFFFFFFFL;
-			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
+			handler = usingHandlers ? getHandler(this) : null;
 		}
 
 		private void print() {
@@ -889,7 +1471,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw mipsException.signal(exceptionOverflow);
 				}
 				break;
 
@@ -959,7 +1541,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw mipsException.signal(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1030,7 +1612,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw mipsException.signal(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1040,7 +1622,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw mipsException.signal(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1075,6 +1657,13 @@ public final class Processor {
 		// state used to execute a single instruction
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
+		// where the predecoded form of this instruction is cached
+		DecodedPage page;
+
+		Handler handler;
+
+		int index;
+
 		int operation, format, flags;
 
 		String name;
@@ -1090,6 +1679,135 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The predecoded instructions for one physical page. For each word of the
+	 * page, stores the fields of the instruction that do not depend on the
+	 * register file, so that an instruction only has to be decoded the first
+	 * time it is executed.
+	 */
+	private class DecodedPage {
+		DecodedPage(int ppn) {
+			this.ppn = ppn;
+		}
+
+		/**
+		 * Return <tt>true</tt> if the word at the specified index has been
+		 * decoded.
+		 */
+		boolean isDecoded(int index) {
+			return info[index] != 0;
+		}
+
+		/**
+		 * Copy the predecoded word at the specified index into an instruction.
+		 * 
+		 * @return <tt>true</tt> if the word had been decoded.
+		 */
+		boolean load(int index, Instruction inst) {
+			int i = info[index];
+			if (i == 0)
+				return false;
+
+			inst.flags = i & 0xFFF;
+			inst.operation = (i >>> 12) & 0x3F;
+			inst.format = (i >>> 18) & 0x3;
+			inst.size = (i >>> 20) & 0x7;
+
+			int r = regs[index];
+			inst.rs = r & 0x1F;
+			inst.rt = (r >>> 5) & 0x1F;
+			inst.sh = (r >>> 10) & 0x1F;
+			inst.dstReg = ((r >>> 15) & 0x3F) == 0x3F ? -1 : (r >>> 15) & 0x3F;
+
+			if (inst.format == Mips.JFMT)
+				inst.target = imms[index];
+			else
+				inst.imm = imms[index];
+
+			inst.handler = handlers[index];
+
+			return true;
+		}
+
+		/**
+		 * Save the decoded fields of an instruction at the specified index.
+		 */
+		void store(int index, Instruction inst) {
+			info[index] = 0x80000000 | inst.flags | (inst.operation << 12)
+					| (inst.format << 18) | (inst.size << 20);
+			regs[index] = inst.rs | (inst.rt << 5) | (inst.sh << 10)
+					| ((inst.dstReg & 0x3F) << 15);
+			imms[index] = (inst.format == Mips.JFMT) ? inst.target : inst.imm;
+			handlers[index] = inst.handler;
+
+			numDecoded++;
+		}
+
+		/**
+		 * Return the number of instructions in the basic block starting at the
+		 * specified index, decoding them if necessary. A block ends after the
+		 * delay slot of a branch or jump, after a syscall or invalid
+		 * instruction, or at the end of the page.
+		 * 
+		 * @param scanner an instruction used to decode words that have not
+		 * been executed yet.
+		 */
+		int blockLength(int index, Instruction scanner) {
+			if (blocks[index] != 0)
+				return blocks[index];
+
+			int end = index;
+			while (end < info.length) {
+				if (info[end] == 0) {
+					scanner.value = Lib.bytesToInt(mainMemory, ppn * pageSize
+							+ end * 4);
+					scanner.decodeWord();
+					store(end, scanner);
+				}
+
+				int flags = info[end] & 0xFFF;
+				int operation = (info[end] >>> 12) & 0x3F;
+				end++;
+
+				if (Lib.test(Mips.BRANCH, flags)) {
+					end = Math.min(end + 1, info.length);
+					break;
+				}
+				if (operation == Mips.SYSCALL || operation == Mips.INVALID
+						|| operation == Mips.UNIMPL)
+					break;
+			}
+
+			blocks[index] = end - index;
+			return blocks[index];
+		}
+
+		/**
+		 * Forget every decoded word in this page.
+		 */
+		void invalidate() {
+			if (numDecoded > 0) {
+				Arrays.fill(info, 0);
+				Arrays.fill(blocks, 0);
+				numDecoded = 0;
+			}
+		}
+
+		private int ppn;
+
+		private int[] info = new int[pageSize / 4];
+
+		private int[] blocks = new int[pageSize / 4];
+
+		private int[] regs = new int[pageSize / 4];
+
+		private int[] imms = new int[pageSize / 4];
+
+		private Handler[] handlers = new Handler[pageSize / 4];
+
+		private int numDecoded = 0;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -31,6 +31,16 @@ public final class Stats {
 			        + ", swap writes " + numSwapWrites);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		System.out.println("Deadlines: missed " + numDeadlineMisses);
+
+		long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+		System.out.println("Exceptions: delivered " + numExceptions + ", "
+				+ (numExceptions * 1000L / elapsed) + " per second");
+
+		// every user instruction takes exactly one user tick
+		long numInstructions = userTicks / UserTick;
+		System.out.println("Instructions: executed " + numInstructions + ", "
+				+ (numInstructions * 1000L / elapsed) + " per second");
 	}
 
 	/**
@@ -81,6 +91,21 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The total number of user exceptions (including syscalls) the processor
+	 * has delivered to the kernel.
+	 */
+	public int numExceptions = 0;
+
+	/**
+	 * The total number of jobs of periodic real-time threads that missed
+	 * their deadlines.
+	 */
+	public int numDeadlineMisses = 0;
+
+	/** The host time, in milliseconds, at which this object was created. */
+	private long startTime = System.currentTimeMillis();
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
@@ -5,13 +5,27 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
- * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * and destroy Nachos threads. Each running TCB controls an underlying JVM
+ * Thread object, which is returned to a pool and reused by a later TCB once
+ * this TCB is destroyed.
+ * 
+ * <p>
+ * <tt>TCB.backend</tt> in the config file selects how control is handed from
+ * one TCB to the next. The default, <tt>monitor</tt>, waits on a monitor bound
+ * to each TCB. <tt>park</tt> hands off with <tt>LockSupport.park()</tt> and
+ * <tt>unpark()</tt> instead, and <tt>virtual</tt> does the same but runs each
+ * TCB on a Java virtual thread, which requires Java 21 or later.
+ * <tt>continuation</tt> runs every TCB as a continuation on the thread that
+ * started Nachos, so a context switch never involves the host scheduler. It
+ * needs a JVM with <tt>jdk.internal.vm.Continuation</tt>, such as Java 21,
+ * started with <tt>--add-exports java.base/jdk.internal.vm=ALL-UNNAMED</tt>.
  * 
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -39,6 +53,59 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(maxThreads > 0);
+
+		String backend = Config.getString("TCB.backend", "monitor");
+		Lib.assertTrue(backend.equals("monitor") || backend.equals("park")
+				|| backend.equals("virtual") || backend.equals("continuation"),
+				"unknown TCB.backend " + backend);
+		parking = backend.equals("park") || backend.equals("virtual");
+		if (backend.equals("virtual"))
+			initVirtualThreads();
+		if (backend.equals("continuation"))
+			initContinuations();
+	}
+
+	/**
+	 * Look up the internal continuation API reflectively, for the same reason
+	 * as <tt>initVirtualThreads()</tt>.
+	 */
+	private static void initContinuations() {
+		try {
+			Class<?> scopeClass = Class.forName("jdk.internal.vm.ContinuationScope");
+			Class<?> contClass = Class.forName("jdk.internal.vm.Continuation");
+
+			continuationScope = scopeClass.getConstructor(String.class)
+					.newInstance("nachos");
+			newContinuation = contClass.getConstructor(scopeClass,
+					Runnable.class);
+			runContinuation = contClass.getMethod("run");
+			yieldContinuation = contClass.getMethod("yield", scopeClass);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("TCB.backend continuation is not supported by "
+					+ System.getProperty("java.version") + ": " + e);
+		}
+
+		continuations = true;
+	}
+
+	/**
+	 * Look up the virtual thread builder, which we can only reach reflectively
+	 * since Nachos is built for JVMs that predate virtual threads.
+	 */
+	private static void initVirtualThreads() {
+		try {
+			virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			virtualUnstarted = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("TCB.backend virtual is not supported by "
+					+ System.getProperty("java.version"));
+		}
 	}
 
 	/**
@@ -89,33 +156,45 @@ public final class TCB {
 
 		this.target = target;
 
-		if (!isFirstTCB) {
+		if (continuations) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * Every TCB shares the thread that started the first one. A new
+			 * continuation does nothing until contextSwitch() first resumes
+			 * it, so there is no hand-off to wait for. The first TCB turns
+			 * the calling thread into the carrier, which only returns once no
+			 * TCB is left to resume.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
-
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			javaThread = isFirstTCB ? Thread.currentThread()
+					: currentTCB.javaThread;
+			continuation = reflect(newContinuation, null, continuationScope,
+					new Runnable() {
+						public void run() {
+							threadroot();
+						}
+					});
+
+			if (isFirstTCB)
+				runCarrier(this);
+		}
+		else if (!isFirstTCB) {
+			/*
+			 * If this is not the first TCB, we need a Java thread to run it.
+			 * We reuse an idle worker left behind by a destroyed TCB if there
+			 * is one, and only create a new Java thread otherwise.
+			 */
+			worker = takeWorker();
+			javaThread = worker.thread;
 
 			/*
-			 * The Java thread hasn't yet started, but we need to get it
+			 * The worker isn't running this TCB yet, but we need to get it
 			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * current TCB, handing this TCB to the worker, and waiting for it
+			 * to wake us up from threadroot(). Once the new TCB wakes us up,
+			 * it's safe to context switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			worker.assign(this);
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -169,6 +248,19 @@ public final class TCB {
 		TCB previous = currentTCB;
 		previous.running = false;
 
+		if (continuations) {
+			/*
+			 * Suspend our continuation and let the carrier resume this TCB.
+			 * We return here once some TCB switches back to us.
+			 */
+			nextContinuation = this;
+			reflect(yieldContinuation, null, continuationScope);
+
+			currentTCB = previous;
+			previous.running = true;
+			return;
+		}
+
 		this.interrupt();
 		previous.yield();
 	}
@@ -191,6 +283,19 @@ public final class TCB {
 		toBeDestroyed = null;
 
 		this.done = true;
+
+		if (continuations) {
+			/*
+			 * A suspended continuation holds no host resources, so we simply
+			 * never resume it again and do what threadroot() would have done
+			 * on its way out.
+			 */
+			runningThreads.removeElement(this);
+			this.continuation = null;
+			this.javaThread = null;
+			return;
+		}
+
 		currentTCB.running = false;
 
 		this.interrupt();
@@ -220,29 +325,37 @@ public final class TCB {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
 
-		if (!isFirstTCB) {
-			/*
-			 * start() is waiting for us to wake it up, signalling that it's OK
-			 * to context switch to us. We leave the running flag false so that
-			 * we'll still run if a context switch happens before we go to
-			 * sleep. All we have to do is wake up the current TCB and then wait
-			 * to get woken up by contextSwitch() or destroy().
-			 */
-
-			currentTCB.interrupt();
-			this.yield();
-		}
-		else {
-			/*
-			 * start() called us directly, so we just need to initialize a
-			 * couple things.
-			 */
-
-			currentTCB = this;
-			running = true;
-		}
-
+		/*
+		 * The hand-off below is inside the try, since destroy() may be called
+		 * before this TCB ever runs. yield() then throws ThreadDeath, which
+		 * must unwind through the catch blocks like any other, so that a
+		 * pooled worker always returns to its loop.
+		 */
 		try {
+			if (!isFirstTCB && !continuations) {
+				/*
+				 * start() is waiting for us to wake it up, signalling that
+				 * it's OK to context switch to us. We leave the running flag
+				 * false so that we'll still run if a context switch happens
+				 * before we go to sleep. All we have to do is wake up the
+				 * current TCB and then wait to get woken up by contextSwitch()
+				 * or destroy().
+				 */
+
+				currentTCB.interrupt();
+				this.yield();
+			}
+			else {
+				/*
+				 * start() called us directly, or the carrier resumed our
+				 * continuation for the first time, so we just need to
+				 * initialize a couple things.
+				 */
+
+				currentTCB = this;
+				running = true;
+			}
+
 			target.run();
 
 			// no way out of here without going throw one of the catch blocks
@@ -283,6 +396,14 @@ public final class TCB {
 		waitForInterrupt();
 
 		if (done) {
+			/*
+			 * Return our worker to the pool before waking up destroy(), so
+			 * that the next start() can reuse it. The worker only picks up
+			 * its next TCB once threadroot() has finished unwinding.
+			 */
+			if (worker != null)
+				releaseWorker(worker);
+
 			currentTCB.interrupt();
 			throw new ThreadDeath();
 		}
@@ -298,12 +419,20 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
+	private void waitForInterrupt() {
+		if (parking) {
+			while (!running)
+				LockSupport.park(this);
+			return;
+		}
+
+		synchronized (this) {
+			while (!running) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
 			}
 		}
 	}
@@ -314,9 +443,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		if (parking) {
+			running = true;
+			LockSupport.unpark(javaThread);
+			return;
+		}
+
+		synchronized (this) {
+			running = true;
+			notify();
+		}
 	}
 
 	private void associateThread(KThread thread) {
@@ -333,6 +470,97 @@ public final class TCB {
 			nachosThread = thread;
 	}
 
+	/**
+	 * Take an idle worker from the pool, or create a new one if the pool is
+	 * empty. Creating Java threads is a privileged operation.
+	 */
+	private static Worker takeWorker() {
+		synchronized (idleWorkers) {
+			if (!idleWorkers.isEmpty())
+				return idleWorkers.remove(idleWorkers.size() - 1);
+		}
+
+		final Worker worker = new Worker();
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				worker.thread = newThread(worker, "TCB worker " + numWorkers++);
+				worker.thread.start();
+			}
+		});
+
+		return worker;
+	}
+
+	/**
+	 * Create an unstarted Java thread, which is a virtual thread if that
+	 * backend is selected.
+	 */
+	private static Thread newThread(Runnable target, String name) {
+		if (virtualBuilder == null)
+			return new Thread(target, name);
+
+		try {
+			Thread thread = (Thread) virtualUnstarted.invoke(virtualBuilder,
+					target);
+			thread.setName(name);
+			return thread;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Resume continuations, starting with <tt>first</tt>, until one returns
+	 * without naming the next TCB to run.
+	 */
+	private static void runCarrier(TCB first) {
+		nextContinuation = first;
+
+		while (nextContinuation != null) {
+			TCB next = nextContinuation;
+			nextContinuation = null;
+			reflect(runContinuation, next.continuation);
+		}
+	}
+
+	/**
+	 * Invoke a reflected constructor or method, passing through anything it
+	 * throws.
+	 */
+	private static Object reflect(java.lang.reflect.Executable executable,
+			Object target, Object... args) {
+		try {
+			if (executable instanceof java.lang.reflect.Constructor)
+				return ((java.lang.reflect.Constructor<?>) executable)
+						.newInstance(args);
+			else
+				return ((java.lang.reflect.Method) executable).invoke(target,
+						args);
+		}
+		catch (java.lang.reflect.InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Return a worker whose TCB has been destroyed to the pool.
+	 */
+	private static void releaseWorker(Worker worker) {
+		synchronized (idleWorkers) {
+			idleWorkers.add(worker);
+		}
+	}
+
 	private static void authorizeDestroy(KThread thread) {
 		// make sure AutoGrader.finishingThread() gets called only once per
 		// destroy
@@ -342,9 +570,47 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence. Can be overridden with <tt>TCB.maxThreads</tt>.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads = 1000;
+
+	/**
+	 * Workers whose TCBs have been destroyed, waiting to run a new TCB. A
+	 * worker is only ever idle after running a TCB to completion, so the pool
+	 * never holds more workers than the peak number of running TCBs, which
+	 * <tt>maxThreads</tt> bounds.
+	 */
+	private static ArrayList<Worker> idleWorkers = new ArrayList<Worker>();
+
+	private static int numWorkers = 0;
+
+	/**
+	 * <tt>true</tt> if TCBs hand off with <tt>LockSupport</tt> rather than
+	 * with their monitors.
+	 */
+	private static boolean parking = false;
+
+	/** The virtual thread builder, or <tt>null</tt> to use platform threads. */
+	private static Object virtualBuilder = null;
+
+	private static java.lang.reflect.Method virtualUnstarted = null;
+
+	/**
+	 * <tt>true</tt> if every TCB runs as a continuation on a single carrier
+	 * thread.
+	 */
+	private static boolean continuations = false;
+
+	private static Object continuationScope = null;
+
+	private static java.lang.reflect.Constructor<?> newContinuation = null;
+
+	private static java.lang.reflect.Method runContinuation = null;
+
+	private static java.lang.reflect.Method yieldContinuation = null;
+
+	/** The TCB the carrier should resume once the current one yields. */
+	private static TCB nextContinuation = null;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -403,7 +669,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +684,70 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The pooled worker running this TCB, or <tt>null</tt> for the first TCB,
+	 * which runs in the thread that called <tt>Machine.main()</tt>.
+	 */
+	private Worker worker = null;
+
+	/**
+	 * The continuation running this TCB, when using the
+	 * <tt>continuation</tt> backend.
+	 */
+	private Object continuation = null;
+
+	/**
+	 * A Java thread that runs TCBs one after another. Rather than letting the
+	 * thread die when its TCB is destroyed, <tt>threadroot()</tt> returns and
+	 * the worker waits to be handed another TCB by <tt>start()</tt>.
+	 */
+	private static class Worker implements Runnable {
+		public void run() {
+			while (true)
+				nextTCB().threadroot();
+		}
+
+		private TCB nextTCB() {
+			if (parking) {
+				while (assigned == null)
+					LockSupport.park(this);
+			}
+			else {
+				synchronized (this) {
+					while (assigned == null) {
+						try {
+							wait();
+						}
+						catch (InterruptedException e) {
+						}
+					}
+				}
+			}
+
+			TCB tcb = assigned;
+			assigned = null;
+			return tcb;
+		}
+
+		private void assign(TCB tcb) {
+			Lib.assertTrue(assigned == null);
+
+			if (parking) {
+				assigned = tcb;
+				LockSupport.unpark(thread);
+				return;
+			}
+
+			synchronized (this) {
+				assigned = tcb;
+				notify();
+			}
+		}
+
+		private Thread thread;
+
+		private volatile TCB assigned = null;
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
@@ -31,6 +31,12 @@ public final class Timer {
 			}
 		};
 
+		alarmInterrupt = new Runnable() {
+			public void run() {
+				alarmInterrupt();
+			}
+		};
+
 		autoGraderInterrupt = new Runnable() {
 			public void run() {
 				Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -51,6 +57,41 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Set the callback to use as the one-shot alarm interrupt handler. The
+	 * handler is called once at the time last passed to
+	 * <tt>setAlarm()</tt>.
+	 * 
+	 * @param handler the alarm interrupt handler.
+	 */
+	public void setAlarmHandler(Runnable handler) {
+		this.alarmHandler = handler;
+	}
+
+	/**
+	 * Program the one-shot alarm to interrupt at the specified time, or at the
+	 * next tick if that time has passed. This replaces any alarm programmed
+	 * earlier that has not gone off yet.
+	 * 
+	 * <p>
+	 * At most one alarm interrupt is pending at a time. Moving the alarm
+	 * earlier cancels it and schedules another. Moving it later leaves it
+	 * alone, and it schedules another for the new time when it occurs.
+	 * 
+	 * @param time the time, in clock ticks, at which to interrupt.
+	 */
+	public void setAlarm(long time) {
+		alarmTime = Math.max(time, getTime() + 1);
+
+		if (alarmPending <= alarmTime)
+			return;
+
+		if (alarmPending != Long.MAX_VALUE)
+			privilege.interrupt.cancel(alarmInterrupt);
+
+		scheduleAlarm();
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -77,6 +118,28 @@ public final class Timer {
 		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
 	}
 
+	private void scheduleAlarm() {
+		alarmPending = alarmTime;
+
+		privilege.interrupt.schedule(alarmTime - getTime(), "alarm",
+				alarmInterrupt);
+	}
+
+	private void alarmInterrupt() {
+		alarmPending = Long.MAX_VALUE;
+
+		// the alarm was moved later while this interrupt was pending
+		if (alarmTime > getTime()) {
+			scheduleAlarm();
+			return;
+		}
+
+		alarmTime = Long.MAX_VALUE;
+
+		if (alarmHandler != null)
+			alarmHandler.run();
+	}
+
 	private void scheduleAutoGraderInterrupt() {
 		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
 	}
@@ -85,9 +148,19 @@ public final class Timer {
 
 	private Runnable timerInterrupt;
 
+	private Runnable alarmInterrupt;
+
 	private Runnable autoGraderInterrupt;
 
 	private Privilege privilege;
 
 	private Runnable handler = null;
+
+	private Runnable alarmHandler = null;
+
+	/** The time the alarm is programmed for, or <tt>Long.MAX_VALUE</tt>. */
+	private long alarmTime = Long.MAX_VALUE;
+
+	/** The time of the pending alarm interrupt, or <tt>Long.MAX_VALUE</tt>. */
+	private long alarmPending = Long.MAX_VALUE;
 }
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		asid = entry.asid;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +79,11 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The address space this translation belongs to. A TLB entry is ignored
+	 * unless this matches the processor's current address space ID (see
+	 * <tt>Processor.setASID()</tt>). Not used by page tables.
+	 */
+	public int asid;
 }
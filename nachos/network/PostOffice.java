@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -13,11 +15,14 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * <tt>Channel</tt>) is protected by a lock. A message that arrives while its
+ * port's queue is full is dropped, so that one port that is not being read
+ * does not hold up delivery to the others. The size of each queue can be set
+ * with <tt>PostOffice.mailboxCapacity</tt>.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+	 * Allocate a new post office, using a list of <tt>Channel</tt>s.
 	 * Register the interrupt handlers with the network hardware and start the
 	 * "postal worker" thread.
 	 */
@@ -26,9 +31,11 @@ public class PostOffice {
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
 
-		queues = new SynchList[MailMessage.portLimit];
-		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+		int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+
+		queues = new ArrayList<Channel<MailMessage>>(MailMessage.portLimit);
+		for (int i = 0; i < MailMessage.portLimit; i++)
+			queues.add(new Channel<MailMessage>(capacity));
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -59,11 +66,11 @@ public class PostOffice {
 	 * @return the message received.
 	 */
 	public MailMessage receive(int port) {
-		Lib.assertTrue(port >= 0 && port < queues.length);
+		Lib.assertTrue(port >= 0 && port < queues.size());
 
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		MailMessage mail = queues.get(port).receive();
 
 		if (Lib.test(dbgNet))
 			System.out.println("got mail on port " + port + ": " + mail);
@@ -94,7 +101,9 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues.get(mail.dstPort).trySend(mail))
+				Lib.debug(dbgNet, "mailbox full, dropped mail to port "
+						+ mail.dstPort + ": " + mail);
 		}
 	}
 
@@ -130,7 +139,7 @@ public class PostOffice {
 		messageSent.V();
 	}
 
-	private SynchList[] queues;
+	private ArrayList<Channel<MailMessage>> queues;
 
 	private Semaphore messageReceived; // V'd when a message can be dequeued
 
@@ -149,6 +149,15 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Cancel a pending interrupt, so that its handler is not called.
+		 * 
+		 * @param handler the handler the interrupt was scheduled with. If it
+		 * was scheduled more than once, only one interrupt is cancelled.
+		 * @return <tt>true</tt> if an interrupt was pending with this handler.
+		 */
+		public boolean cancel(Runnable handler);
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -157,6 +166,26 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once, checking for
+		 * due interrupts only after the last one. The caller must ensure that
+		 * no interrupt becomes due before the last tick.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param count the number of ticks to advance.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+		 * 
+		 * @return the time of the next pending interrupt.
+		 */
+		public long nextInterruptTime();
 	}
 
 	/**
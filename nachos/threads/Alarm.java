@@ -2,11 +2,31 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.HashMap;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Each of the
+ * <tt>numWheels</tt> wheels has <tt>wheelSize</tt> slots, and a slot of each
+ * wheel covers <tt>wheelSize</tt> times as many ticks as a slot of the wheel
+ * below it. A sleeper is put in the lowest wheel whose span covers its wake
+ * time, in a slot that is a doubly-linked list, so that putting a thread to
+ * sleep and cancelling its timer take constant time however many threads are
+ * asleep, and any number of threads may share a wake time. Advancing the
+ * wheels looks only at the occupied slots the clock has moved past since the
+ * last time, waking the threads that are due and moving the rest down to a
+ * finer wheel.
+ * 
+ * <p>
+ * Sleepers are not woken by the periodic timer interrupt. Instead the timer's
+ * one-shot alarm is programmed for the earliest wake time, so that a short
+ * sleep ends close to when it was asked to, and nothing is done at timer
+ * interrupts when no thread is due. To save interrupts, a sleeper may be
+ * woken up to <tt>Alarm.timerSlack</tt> ticks late, so that it can share an
+ * alarm with sleepers due shortly after it.
  */
 public class Alarm {
 	/**
@@ -16,60 +36,110 @@ public class Alarm {
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
-
-	private TreeMap<Long, KThread> sleptThreadQueue = new TreeMap<Long, KThread>();
-
 	public Alarm() {
+		wheelTime = Machine.timer().getTime();
+		timerSlack = Config.getInteger("Alarm.timerSlack", 20);
+		Lib.assertTrue(timerSlack >= 0);
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
 			}
 		});
+
+		Machine.timer().setAlarmHandler(new Runnable() {
+			public void run() {
+				alarmInterrupt();
+			}
+		});
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Lets the scheduler
+	 * preempt the current thread.
 	 */
 	public void timerInterrupt() {
 		// KThread.currentThread().yield();
-		long currentTime = Machine.timer().getTime();
+		ThreadedKernel.scheduler.timerInterrupt();
+	}
 
-		while(!sleptThreadQueue.isEmpty() && currentTime >= sleptThreadQueue.firstKey()) {
-			KThread nextAwKThread = sleptThreadQueue.pollFirstEntry().getValue();
-			nextAwKThread.ready();
-		}
+	/**
+	 * The one-shot alarm interrupt handler. Wakes every thread whose time is
+	 * up, and programs the alarm for the next one.
+	 */
+	private void alarmInterrupt() {
+		alarmTime = Long.MAX_VALUE;
+
+		advance(Machine.timer().getTime());
+
+		long next = nextWakeTime();
+		if (next != Long.MAX_VALUE)
+			setAlarm(next);
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
-	 * in the timer interrupt handler. The thread must be woken up (placed in
-	 * the scheduler ready set) during the first timer interrupt where
+	 * in the alarm interrupt handler. The thread is woken up (placed in the
+	 * scheduler ready set) by the first alarm interrupt where
 	 * 
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
 	 * 
+	 * <p>
+	 * which is at most <tt>Alarm.timerSlack</tt> ticks after that time.
+	 * 
 	 * @param x the minimum number of clock ticks to wait.
 	 * 
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		Boolean intStatus = Machine.interrupt().disable();
-		
-		if(x <= 0) return;
-		long wakeTime = Machine.timer().getTime() + x;
-		sleptThreadQueue.put(wakeTime, KThread.currentThread());
-		KThread.currentThread().sleep();
+		waitUntil(x, null);
+	}
 
-		Machine.interrupt().restore(intStatus);	
-		// while (wakeTime > Machine.timer().getTime())
-		// 	KThread.yield();
+	/**
+	 * Put the current thread to sleep for at least <i>x</i> ticks, as
+	 * <tt>waitUntil(long)</tt> does, unless another thread wakes it first
+	 * with <tt>cancel()</tt>. If the time is up first, <i>timeout</i> is run
+	 * by the alarm interrupt handler, with interrupts disabled, just before
+	 * the thread is woken. A timed wait on a queue uses this to take the
+	 * thread off the queue, so that no other thread can find it there and
+	 * wake it a second time.
+	 * 
+	 * @param x the maximum number of clock ticks to wait.
+	 * @param timeout run if the time is up, or <tt>null</tt>.
+	 * @return <tt>true</tt> if the time was up, or <tt>false</tt> if the
+	 * thread was woken by <tt>cancel()</tt>.
+	 */
+	public boolean waitUntil(long x, Runnable timeout) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (x <= 0) {
+			if (timeout != null)
+				timeout.run();
+
+			Machine.interrupt().restore(intStatus);
+			return true;
+		}
+
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(!sleepers.containsKey(thread));
+
+		long now = Machine.timer().getTime();
+		advance(now);
+
+		Sleeper sleeper = new Sleeper(thread, now + x, timeout);
+		sleepers.put(thread, sleeper);
+		insert(sleeper);
+		setAlarm(sleeper.wakeTime);
+
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+		return sleeper.expired;
 	}
 
-        /**
+	/**
 	 * Cancel any timer set by <i>thread</i>, effectively waking
 	 * up the thread immediately (placing it in the scheduler
 	 * ready set) and returning true.  If <i>thread</i> has no
@@ -79,29 +149,242 @@ public class Alarm {
 	 * @param thread the thread whose timer should be cancelled.
 	 */
 	public boolean cancel(KThread thread) {
-		Boolean intStatus = Machine.interrupt().disable();
-
-		if(sleptThreadQueue.containsValue(thread)) {
-			// System.out.println("Cancel thread " + thread.getName());
-			for(Map.Entry<Long, KThread> entry : sleptThreadQueue.entrySet()) {
-				if(entry.getValue() == thread) {
-					entry.getValue().ready();
-					sleptThreadQueue.remove(entry.getKey());
-					// System.out.println("found thread " + thread.getName());
-					Machine.interrupt().restore(intStatus);
-					return true;
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean cancelled = disarm(thread);
+		if (cancelled)
+			thread.ready();
+
+		Machine.interrupt().restore(intStatus);
+		return cancelled;
+	}
+
+	/**
+	 * Cancel any timer set by <i>thread</i> without waking it, so that it can
+	 * be woken some other way. Its <tt>waitUntil()</tt> then returns
+	 * <tt>false</tt>. Interrupts must be disabled.
+	 * 
+	 * @param thread the thread whose timer should be cancelled.
+	 * @return <tt>true</tt> if the thread had a timer set.
+	 */
+	boolean disarm(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Sleeper sleeper = sleepers.remove(thread);
+		if (sleeper == null)
+			return false;
+
+		unlink(sleeper);
+		return true;
+	}
+
+	/**
+	 * Make sure the alarm goes off in time for a sleeper due at
+	 * <i>wakeTime</i>. If the alarm is already programmed to go off no more
+	 * than <tt>timerSlack</tt> ticks after that, the sleeper shares it. If it
+	 * is programmed to go off earlier, but every sleeper sharing it can wait
+	 * until <i>wakeTime</i>, it is moved back so the new sleeper shares it too.
+	 * Otherwise the alarm is left alone if it goes off earlier, since the
+	 * sleeper will be seen then, or moved forward if it goes off later.
+	 */
+	private void setAlarm(long wakeTime) {
+		if (alarmTime >= wakeTime && alarmTime <= wakeTime + timerSlack) {
+			alarmLatest = Math.min(alarmLatest, wakeTime + timerSlack);
+			return;
+		}
+
+		if (alarmTime < wakeTime) {
+			if (wakeTime > alarmLatest)
+				return;
+		}
+		else {
+			alarmLatest = wakeTime + timerSlack;
+		}
+
+		alarmTime = wakeTime;
+		Machine.timer().setAlarm(alarmTime);
+	}
+
+	/**
+	 * Return a lower bound on the earliest wake time of any sleeper, which is
+	 * exact if that sleeper is in the lowest wheel, or <tt>Long.MAX_VALUE</tt>
+	 * if there are none. A sleeper in a higher wheel is only known to be no
+	 * earlier than the start of its slot; the alarm goes off then, moves it
+	 * down, and is programmed again.
+	 */
+	private long nextWakeTime() {
+		long next = Long.MAX_VALUE;
+
+		for (int wheel = 0; wheel < numWheels; wheel++) {
+			long cursor = wheelTime >>> shift(wheel);
+			int first = (int) cursor & wheelMask;
+
+			// the occupied slots, in the order the clock reaches them
+			long pending = Long.rotateRight(occupied[wheel], first);
+			while (pending != 0) {
+				int ahead = Long.numberOfTrailingZeros(pending);
+				pending &= pending - 1;
+
+				long start = (cursor + ahead) << shift(wheel);
+				if (start >= next)
+					break;
+
+				if (wheel > 0 && ahead > 0) {
+					next = start;
+					break;
 				}
+
+				// the slot the clock is in, or a slot of the lowest wheel
+				int slot = (first + ahead) & wheelMask;
+				for (Sleeper s = heads[wheel][slot]; s != null; s = s.next)
+					next = Math.min(next, s.wakeTime);
+
+				// only the top wheel holds sleepers more than one turn away
+				if (wheel < numWheels - 1)
+					break;
 			}
-			Machine.interrupt().restore(intStatus);
-			return true;
 		}
-		else {
-			// System.out.println("thread " + thread.getName()+ " not found");
-			Machine.interrupt().restore(intStatus);
-			return false;
+
+		return next;
+	}
+
+	/**
+	 * Return the number of ticks covered by one slot of the specified wheel,
+	 * as a shift.
+	 */
+	private static int shift(int wheel) {
+		return slotShift + wheelBits * wheel;
+	}
+
+	/**
+	 * Put a sleeper at the back of its slot in the lowest wheel that spans
+	 * its wake time, measured from <tt>wheelTime</tt>, within less than one
+	 * turn. Sleepers further away than the top wheel spans go in the top
+	 * wheel, and are looked at again each time it turns.
+	 */
+	private void insert(Sleeper sleeper) {
+		long delta = sleeper.wakeTime - wheelTime;
+
+		int wheel = 0;
+		while (wheel < numWheels - 1
+				&& delta >= (long) wheelMask << shift(wheel))
+			wheel++;
+
+		int slot = (int) (sleeper.wakeTime >>> shift(wheel)) & wheelMask;
+		sleeper.wheel = wheel;
+		sleeper.slot = slot;
+		sleeper.next = null;
+		sleeper.prev = tails[wheel][slot];
+
+		if (sleeper.prev == null)
+			heads[wheel][slot] = sleeper;
+		else
+			sleeper.prev.next = sleeper;
+		tails[wheel][slot] = sleeper;
+
+		occupied[wheel] |= 1L << slot;
+	}
+
+	/**
+	 * Remove a sleeper from its slot.
+	 */
+	private void unlink(Sleeper sleeper) {
+		int wheel = sleeper.wheel, slot = sleeper.slot;
+
+		if (sleeper.prev == null)
+			heads[wheel][slot] = sleeper.next;
+		else
+			sleeper.prev.next = sleeper.next;
+
+		if (sleeper.next == null)
+			tails[wheel][slot] = sleeper.prev;
+		else
+			sleeper.next.prev = sleeper.prev;
+
+		if (heads[wheel][slot] == null)
+			occupied[wheel] &= ~(1L << slot);
+
+		sleeper.prev = sleeper.next = null;
+	}
+
+	/**
+	 * Move the wheels forward to <i>now</i>. In each wheel, empty every
+	 * occupied slot that the clock has entered or passed since the last call,
+	 * waking the sleepers that are due and reinserting the others, which then
+	 * land in a finer wheel.
+	 */
+	private void advance(long now) {
+		long then = wheelTime;
+		wheelTime = now;
+
+		for (int wheel = 0; wheel < numWheels; wheel++) {
+			long from = then >>> shift(wheel), to = now >>> shift(wheel);
+
+			long passed;
+			if (to - from >= wheelMask) {
+				passed = -1L;
+			}
+			else {
+				int first = (int) from & wheelMask, last = (int) to & wheelMask;
+				if (first <= last)
+					passed = (-1L << first) & (-1L >>> (63 - last));
+				else
+					passed = (-1L << first) | (-1L >>> (63 - last));
+			}
+
+			long pending = occupied[wheel] & passed;
+			while (pending != 0) {
+				int slot = Long.numberOfTrailingZeros(pending);
+				pending &= pending - 1;
+
+				Sleeper sleeper = heads[wheel][slot];
+				heads[wheel][slot] = tails[wheel][slot] = null;
+				occupied[wheel] &= ~(1L << slot);
+
+				while (sleeper != null) {
+					Sleeper next = sleeper.next;
+
+					if (sleeper.wakeTime <= now) {
+						sleepers.remove(sleeper.thread);
+						sleeper.prev = sleeper.next = null;
+						sleeper.expired = true;
+						if (sleeper.timeout != null)
+							sleeper.timeout.run();
+						sleeper.thread.ready();
+					}
+					else {
+						insert(sleeper);
+					}
+
+					sleeper = next;
+				}
+			}
 		}
 	}
 
+	/**
+	 * A sleeping thread, linked into a slot of one of the wheels.
+	 */
+	private static class Sleeper {
+		Sleeper(KThread thread, long wakeTime, Runnable timeout) {
+			this.thread = thread;
+			this.wakeTime = wakeTime;
+			this.timeout = timeout;
+		}
+
+		KThread thread;
+
+		long wakeTime;
+
+		Runnable timeout;
+
+		boolean expired = false;
+
+		int wheel, slot;
+
+		Sleeper prev = null, next = null;
+	}
+
     public static void alarmTest0() {
 		int durations[] = {999, -10*1000, 100*1000, 0};
 		long t0, t1;
@@ -153,6 +436,81 @@ public class Alarm {
 		child1.join();
 		System.out.println("done all");
 	}
+	/**
+	 * Put many threads to sleep at once, with groups of them sharing a wake
+	 * time and spread over all the wheels, cancel a third of them, and check
+	 * that every other thread runs again no earlier than its wake time, and
+	 * no more than <tt>Alarm.timerSlack</tt> ticks plus one timer period
+	 * after it. The period allows for the scheduler to let other woken
+	 * threads run first.
+	 */
+	public static void alarmTest3() {
+		final int numThreads = 900, numDeadlines = 30;
+		final long[] woke = new long[numThreads];
+		final long[] wakeTime = new long[numThreads];
+		KThread[] threads = new KThread[numThreads];
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+			final long x = 20000 + (long) (i % numDeadlines) * (i % numDeadlines)
+					* 700;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					wakeTime[id] = Machine.timer().getTime() + x;
+					ThreadedKernel.alarm.waitUntil(x);
+					woke[id] = Machine.timer().getTime();
+				}
+			}).setName("sleeper" + i);
+			threads[i].fork();
+		}
+
+		// let them all go to sleep
+		KThread.yield();
+
+		int cancelled = 0;
+		for (int i = 0; i < numThreads; i += 3) {
+			if (ThreadedKernel.alarm.cancel(threads[i])) {
+				wakeTime[i] = 0;
+				cancelled++;
+			}
+		}
+
+		for (int i = 0; i < numThreads; i++) {
+			threads[i].join();
+			Lib.assertTrue(woke[i] >= wakeTime[i]);
+			if (wakeTime[i] != 0)
+				Lib.assertTrue(woke[i] <= wakeTime[i]
+						+ ThreadedKernel.alarm.timerSlack + Stats.TimerTicks);
+		}
+
+		System.out.println("alarmTest3: " + numThreads + " sleepers, "
+				+ cancelled + " cancelled, in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Sleep for a few short times, and report how many ticks past each
+	 * requested time the thread woke up. With the one-shot alarm it should
+	 * be no more than <tt>Alarm.timerSlack</tt>, rather than up to a whole
+	 * timer period.
+	 */
+	public static void alarmTest4() {
+		long durations[] = {1, 17, 50, 120, 333, 1000, 2500};
+
+		for (long d : durations) {
+			long t0 = Machine.timer().getTime();
+			ThreadedKernel.alarm.waitUntil(d);
+			long late = Machine.timer().getTime() - t0 - d;
+
+			System.out.println("alarmTest4: slept " + d + " ticks, woke "
+					+ late + " ticks late");
+			Lib.assertTrue(late >= 0
+					&& late <= ThreadedKernel.alarm.timerSlack + Stats.KernelTick);
+		}
+	}
+
     // Implement more test methods here ...
 
     // Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
@@ -160,8 +518,40 @@ public class Alarm {
 		// alarmTest0();
 		// alarmTest1();
 		alarmTest2();
+		// alarmTest3();
+		// alarmTest4();
 	// Invoke your other test methods here ...
     }
 
+	private static final int wheelBits = 6, wheelSize = 1 << wheelBits,
+			wheelMask = wheelSize - 1;
+
+	private static final int numWheels = 4;
+
+	/** A slot of the lowest wheel covers <tt>1 &lt;&lt; slotShift</tt> ticks. */
+	private static final int slotShift = 4;
+
+	private Sleeper[][] heads = new Sleeper[numWheels][wheelSize];
+
+	private Sleeper[][] tails = new Sleeper[numWheels][wheelSize];
+
+	/** A bitmap of the non-empty slots of each wheel. */
+	private long[] occupied = new long[numWheels];
+
+	/** The number of ticks a sleeper may be woken late to share an alarm. */
+	private int timerSlack;
+
+	/**
+	 * The time the alarm is programmed for, or <tt>Long.MAX_VALUE</tt>, and
+	 * the latest time that every sleeper sharing it can be woken.
+	 */
+	private long alarmTime = Long.MAX_VALUE, alarmLatest;
+
+	/** The time the wheels were last advanced to. */
+	private long wheelTime;
+
+	/** The timer of each sleeping thread, for <tt>cancel()</tt>. */
+	private HashMap<KThread, Sleeper> sleepers = new HashMap<KThread, Sleeper>();
+
 	final Lock lock = new Lock();
 }
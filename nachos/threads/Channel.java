@@ -0,0 +1,307 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import nachos.machine.*;
+
+/**
+ * A bounded, synchronized first-in first-out channel, for any number of
+ * sending and receiving threads.
+ * 
+ * <p>
+ * Items are kept in a ring buffer of fixed capacity, so sending and receiving
+ * do not allocate. A thread that sends to a full channel waits until a
+ * receiver makes room, which keeps a fast producer from getting arbitrarily
+ * far ahead of its consumers. Each operation also has a form that does not
+ * wait, and one that waits at most a given number of ticks.
+ */
+public class Channel<T> {
+	/**
+	 * Allocate a new channel.
+	 * 
+	 * @param capacity the most items the channel holds before senders wait.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		items = new Object[capacity];
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Add an item to the back of the channel, waiting until there is room if
+	 * necessary.
+	 * 
+	 * @param item the item to add. Must not be <tt>null</tt>.
+	 */
+	public void send(T item) {
+		Lib.assertTrue(item != null);
+
+		lock.acquire();
+		while (count == items.length)
+			notFull.sleep();
+		put(item);
+		lock.release();
+	}
+
+	/**
+	 * Add an item to the back of the channel if there is room, without
+	 * waiting.
+	 * 
+	 * @param item the item to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the item was added.
+	 */
+	public boolean trySend(T item) {
+		return send(item, 0);
+	}
+
+	/**
+	 * Add an item to the back of the channel, waiting at most <i>timeout</i>
+	 * ticks for there to be room.
+	 * 
+	 * @param item the item to add. Must not be <tt>null</tt>.
+	 * @param timeout the maximum number of ticks to wait.
+	 * @return <tt>true</tt> if the item was added.
+	 */
+	public boolean send(T item, long timeout) {
+		Lib.assertTrue(item != null);
+
+		long deadline = Machine.timer().getTime() + timeout;
+		boolean sent = false;
+
+		lock.acquire();
+		while (count == items.length) {
+			long left = deadline - Machine.timer().getTime();
+			if (left <= 0)
+				break;
+			notFull.sleepFor(left);
+		}
+		if (count < items.length) {
+			put(item);
+			sent = true;
+		}
+		lock.release();
+
+		return sent;
+	}
+
+	/**
+	 * Remove an item from the front of the channel, waiting until there is one
+	 * if necessary.
+	 * 
+	 * @return the item removed from the front of the channel.
+	 */
+	public T receive() {
+		lock.acquire();
+		while (count == 0)
+			notEmpty.sleep();
+		T item = take();
+		lock.release();
+
+		return item;
+	}
+
+	/**
+	 * Remove an item from the front of the channel if there is one, without
+	 * waiting.
+	 * 
+	 * @return the item removed, or <tt>null</tt> if the channel was empty.
+	 */
+	public T tryReceive() {
+		return receive(0);
+	}
+
+	/**
+	 * Remove an item from the front of the channel, waiting at most
+	 * <i>timeout</i> ticks for there to be one.
+	 * 
+	 * @param timeout the maximum number of ticks to wait.
+	 * @return the item removed, or <tt>null</tt> if the channel stayed empty.
+	 */
+	public T receive(long timeout) {
+		long deadline = Machine.timer().getTime() + timeout;
+		T item = null;
+
+		lock.acquire();
+		while (count == 0) {
+			long left = deadline - Machine.timer().getTime();
+			if (left <= 0)
+				break;
+			notEmpty.sleepFor(left);
+		}
+		if (count > 0)
+			item = take();
+		lock.release();
+
+		return item;
+	}
+
+	/**
+	 * Remove up to <i>max</i> items from the front of the channel and add them
+	 * to <i>c</i>, in order, without waiting. Every sender the removed items
+	 * make room for is woken.
+	 * 
+	 * @param c the collection to add the items to.
+	 * @param max the most items to remove.
+	 * @return the number of items removed.
+	 */
+	public int drainTo(Collection<? super T> c, int max) {
+		lock.acquire();
+
+		int n = Math.min(max, count);
+		for (int i = 0; i < n; i++)
+			c.add(get(head + i));
+
+		for (int i = 0; i < n; i++)
+			items[(head + i) % items.length] = null;
+		head = (head + n) % items.length;
+		count -= n;
+
+		if (n == 1)
+			notFull.wake();
+		else if (n > 1)
+			notFull.wakeAll();
+
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Return the number of items in the channel. The value may be out of date
+	 * as soon as it is returned.
+	 * 
+	 * @return the number of items in the channel.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return the most items the channel holds before senders wait.
+	 * 
+	 * @return the capacity of the channel.
+	 */
+	public int capacity() {
+		return items.length;
+	}
+
+	/**
+	 * Add an item at the back of the ring and wake a receiver. The lock must
+	 * be held and there must be room.
+	 */
+	private void put(T item) {
+		items[(head + count) % items.length] = item;
+		count++;
+
+		notEmpty.wake();
+	}
+
+	/**
+	 * Remove the item at the front of the ring and wake a sender. The lock
+	 * must be held and there must be an item.
+	 */
+	private T take() {
+		T item = get(head);
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+
+		notFull.wake();
+
+		return item;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T get(int i) {
+		return (T) items[i % items.length];
+	}
+
+	private static class Producer implements Runnable {
+		Producer(Channel<Integer> channel, int id, int count) {
+			this.channel = channel;
+			this.id = id;
+			this.count = count;
+		}
+
+		public void run() {
+			for (int i = 0; i < count; i++)
+				channel.send(id * count + i);
+		}
+
+		private Channel<Integer> channel;
+
+		private int id, count;
+	}
+
+	/**
+	 * Test that this module is working. Several producers send through a small
+	 * channel to several consumers, which check that every item arrives
+	 * exactly once. Then check the non-blocking and batch operations, and
+	 * that items come out in the order they went in.
+	 */
+	public static void selfTest() {
+		final int numProducers = 3, numConsumers = 2, perProducer = 200;
+		final Channel<Integer> channel = new Channel<Integer>(4);
+		final boolean[] seen = new boolean[numProducers * perProducer];
+
+		KThread[] producers = new KThread[numProducers];
+		for (int i = 0; i < numProducers; i++) {
+			producers[i] = new KThread(new Producer(channel, i, perProducer))
+					.setName("producer" + i);
+			producers[i].fork();
+		}
+
+		KThread[] consumers = new KThread[numConsumers];
+		for (int i = 0; i < numConsumers; i++) {
+			consumers[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numProducers * perProducer
+							/ numConsumers; j++) {
+						int item = channel.receive();
+						Lib.assertTrue(!seen[item]);
+						seen[item] = true;
+					}
+				}
+			}).setName("consumer" + i);
+			consumers[i].fork();
+		}
+
+		for (int i = 0; i < numProducers; i++)
+			producers[i].join();
+		for (int i = 0; i < numConsumers; i++)
+			consumers[i].join();
+
+		for (int i = 0; i < seen.length; i++)
+			Lib.assertTrue(seen[i]);
+		Lib.assertTrue(channel.size() == 0);
+
+		Lib.assertTrue(channel.tryReceive() == null);
+		for (int i = 0; i < channel.capacity(); i++)
+			Lib.assertTrue(channel.trySend(i));
+		Lib.assertTrue(!channel.trySend(-1));
+		Lib.assertTrue(!channel.send(-1, 1000));
+
+		ArrayList<Integer> drained = new ArrayList<Integer>();
+		Lib.assertTrue(channel.drainTo(drained, 3) == 3);
+		Lib.assertTrue(channel.drainTo(drained, 10) == 1);
+		for (int i = 0; i < drained.size(); i++)
+			Lib.assertTrue(drained.get(i) == i);
+
+		System.out.println("Channel.selfTest passed");
+	}
+
+	private Object[] items;
+
+	/** The index of the front item, and the number of items. */
+	private int head = 0, count = 0;
+
+	private Lock lock;
+
+	private Condition2 notEmpty;
+
+	private Condition2 notFull;
+}
@@ -8,6 +8,11 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ * 
+ * <p>
+ * Speakers take turns, and the speaker whose turn it is passes its word to a
+ * listener through a one-item <tt>Channel</tt>, then waits on a second one
+ * for the listener to say it has the word.
  */
 public class Communicator {
 	/**
@@ -27,6 +32,10 @@ public class Communicator {
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		speakLock.acquire();
+		words.send(word);
+		heard.receive();
+		speakLock.release();
 	}
 
 	/**
@@ -36,6 +45,57 @@ public class Communicator {
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		int word = words.receive();
+		heard.send(word);
+		return word;
 	}
+
+	/**
+	 * Test that this module is working. Several speakers and several listeners
+	 * exchange words, and every word must be heard exactly once.
+	 */
+	public static void selfTest() {
+		final int numSpeakers = 3, numListeners = 3, perSpeaker = 50;
+		final Communicator com = new Communicator();
+		final boolean[] heard = new boolean[numSpeakers * perSpeaker];
+
+		KThread[] threads = new KThread[numSpeakers + numListeners];
+		for (int i = 0; i < numSpeakers; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < perSpeaker; j++)
+						com.speak(id * perSpeaker + j);
+				}
+			}).setName("speaker" + i);
+		}
+		for (int i = 0; i < numListeners; i++) {
+			threads[numSpeakers + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numSpeakers * perSpeaker / numListeners; j++) {
+						int word = com.listen();
+						Lib.assertTrue(!heard[word]);
+						heard[word] = true;
+					}
+				}
+			}).setName("listener" + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		for (int i = 0; i < heard.length; i++)
+			Lib.assertTrue(heard[i]);
+
+		System.out.println("Communicator.selfTest passed");
+	}
+
+	/** Held by the speaker whose word is being passed. */
+	private Lock speakLock = new Lock();
+
+	private Channel<Integer> words = new Channel<Integer>(1);
+
+	private Channel<Integer> heard = new Channel<Integer>(1);
 }
@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import java.util.HashSet;
 import java.util.LinkedList;
 
 /**
@@ -24,6 +25,7 @@ public class Condition2 {
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
 		waitQueue = new LinkedList<KThread>();
+		timedWaiters = new HashSet<KThread>();
 	}
 
 	/**
@@ -31,16 +33,22 @@ public class Condition2 {
 	 * variable until another thread wakes it using <tt>wake()</tt>. The current
 	 * thread must hold the associated lock. The thread will automatically
 	 * reacquire the lock before <tt>sleep()</tt> returns.
+	 * 
+	 * <p>
+	 * A woken thread is moved straight onto the lock's wait queue (wait
+	 * morphing), since the thread that woke it holds the lock. It does not
+	 * run until the lock is handed to it, so it never runs only to block
+	 * again on the lock.
 	 */
 	public void sleep() {
-		Machine.interrupt().disable();
+		boolean intStatus = Machine.interrupt().disable();
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		waitQueue.add(KThread.currentThread());
 
 		conditionLock.release();
-		KThread.currentThread().sleep();
-		conditionLock.acquire();
-		Machine.interrupt().enable();
+		KThread.sleep();
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -53,9 +61,8 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		if(!waitQueue.isEmpty()) {
 			KThread wokeThread = ((KThread) waitQueue.removeFirst());
-            ThreadedKernel.alarm.cancel(wokeThread);
             // System.out.println("wake "+wokeThread.getName());
-            wokeThread.ready();
+            transfer(wokeThread);
         }
 
 		Machine.interrupt().restore(intStatus);
@@ -70,21 +77,23 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		while(!waitQueue.isEmpty()) {
             KThread wokeThread = ((KThread) waitQueue.removeFirst());
-            ThreadedKernel.alarm.cancel(wokeThread);
-            wokeThread.ready();
+            transfer(wokeThread);
         }
 
-		Machine.interrupt().enable();
+		Machine.interrupt().restore(intStatus);
 	}
 
-        /**
-	 * Atomically release the associated lock and go to sleep on
-	 * this condition variable until either (1) another thread
-	 * wakes it using <tt>wake()</tt>, or (2) the specified
-	 * <i>timeout</i> elapses.  The current thread must hold the
-	 * associated lock.  The thread will automatically reacquire
-	 * the lock before <tt>sleep()</tt> returns.
+	/**
+	 * Move a woken thread onto the associated lock's wait queue, first
+	 * cancelling its timer if it is in <tt>sleepFor()</tt>, without making
+	 * it ready.
 	 */
+	private void transfer(KThread thread) {
+		if (timedWaiters.remove(thread))
+			Lib.assertTrue(ThreadedKernel.alarm.disarm(thread));
+		conditionLock.transfer(thread);
+	}
+
     private static class InterlockTest {
         private static Lock lock;
         private static Condition cv;
@@ -227,26 +236,135 @@ public class Condition2 {
 
 
 
+    // A thread whose sleepFor() times out must not stay on the wait
+    // queue, or a later wake() would be spent on it and lost.
+    private static void sleepForTest2 () {
+            final Lock lock = new Lock();
+            final Condition2 cv = new Condition2(lock);
+            final boolean[] woken = new boolean[1];
+
+            lock.acquire();
+            long t0 = Machine.timer().getTime();
+            cv.sleepFor(2000);
+            long t1 = Machine.timer().getTime();
+            System.out.println("sleepForTest2: timed out after " + (t1 - t0) + " ticks");
+            Lib.assertTrue(t1 - t0 >= 2000);
+            lock.release();
+
+            KThread sleeper = new KThread( new Runnable () {
+                    public void run() {
+                        lock.acquire();
+                        cv.sleep();
+                        woken[0] = true;
+                        lock.release();
+                    }
+                });
+            sleeper.setName("Sleeper");
+            sleeper.fork();
+            KThread.yield();
+
+            lock.acquire();
+            cv.wake();
+            lock.release();
+
+            sleeper.join();
+            Lib.assertTrue(woken[0]);
+            System.out.println("sleepForTest2: wake() went to the sleeping thread");
+        }
+
+    // Have n threads wait on one condition variable, then wake them all
+    // while still holding the lock for a while, as a producer adding a
+    // batch of items would, and count the context switches per thread
+    // woken.
+    public static void wakeAllBenchmark(final int n) {
+            final Lock lock = new Lock();
+            final Condition2 cv = new Condition2(lock);
+            final boolean[] go = new boolean[1];
+            final int[] done = new int[1];
+
+            KThread[] waiters = new KThread[n];
+            for (int i = 0; i < n; i++) {
+                waiters[i] = new KThread( new Runnable () {
+                        public void run() {
+                            lock.acquire();
+                            while (!go[0])
+                                cv.sleep();
+                            done[0]++;
+                            lock.release();
+                        }
+                    });
+                waiters[i].setName("Waiter" + i);
+                waiters[i].fork();
+            }
+
+            // let them all go to sleep
+            ThreadedKernel.alarm.waitUntil(100);
+
+            long switches = KThread.getNumContextSwitches();
+
+            lock.acquire();
+            go[0] = true;
+            cv.wakeAll();
+            // keep the lock across a context switch
+            KThread.yield();
+            lock.release();
+
+            for (int i = 0; i < n; i++)
+                waiters[i].join();
+            Lib.assertTrue(done[0] == n);
+
+            switches = KThread.getNumContextSwitches() - switches;
+            System.out.println("wakeAllBenchmark: " + n + " waiters, "
+                + switches + " context switches, "
+                + (double) switches / n + " per thread woken");
+        }
+
     public static void selfTest() {
         sleepForTest1();
+        sleepForTest2();
     }
     // Invoke Condition2.selfTest() from ThreadedKernel.selfTest()
     // public static void selfTest() {
     //     new InterlockTest();
     // }
 
+        /**
+	 * Atomically release the associated lock and go to sleep on
+	 * this condition variable until either (1) another thread
+	 * wakes it using <tt>wake()</tt>, or (2) the specified
+	 * <i>timeout</i> elapses.  The current thread must hold the
+	 * associated lock.  The thread will automatically reacquire
+	 * the lock before <tt>sleep()</tt> returns.
+	 * 
+	 * <p>
+	 * If the timeout elapses, the thread is taken off this condition
+	 * variable's wait queue, so that a later <tt>wake()</tt> is not spent
+	 * on it.
+	 */
 	public void sleepFor(long timeout) {
 
-		Machine.interrupt().disable();
+		boolean intStatus = Machine.interrupt().disable();
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		waitQueue.add(KThread.currentThread());
+		final KThread thread = KThread.currentThread();
+		waitQueue.add(thread);
+		timedWaiters.add(thread);
 
 		conditionLock.release();
-        ThreadedKernel.alarm.waitUntil(timeout);
-		conditionLock.acquire();
-		Machine.interrupt().enable();
+        ThreadedKernel.alarm.waitUntil(timeout, new Runnable() {
+            public void run() {
+                Lib.assertTrue(waitQueue.remove(thread));
+            }
+        });
+        timedWaiters.remove(thread);
+        // a woken thread already holds the lock; one that timed out does not
+        if (!conditionLock.isHeldByCurrentThread())
+            conditionLock.acquire();
+		Machine.interrupt().restore(intStatus);
 	}
 
         private Lock conditionLock;
 		private LinkedList<KThread> waitQueue;
+
+		/** The threads waiting in <tt>sleepFor()</tt> with a timer set. */
+		private HashSet<KThread> timedWaiters;
 }
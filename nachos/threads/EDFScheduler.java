@@ -0,0 +1,463 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * An earliest-deadline-first scheduler. Threads are ordered by their absolute
+ * deadline, in ticks of <tt>Machine.timer().getTime()</tt>. Threads without a
+ * deadline are ordered after every thread that has one, first come first
+ * served among themselves.
+ * 
+ * <p>
+ * A thread becomes a periodic real-time thread with <tt>setDeadline()</tt>,
+ * which gives it a period, a relative deadline and a budget of ticks it may
+ * run in each period. When a job is done, the thread calls
+ * <tt>nextPeriod()</tt>, which records a deadline miss in <tt>Stats</tt> if
+ * the job finished late, and sleeps until the next release. A thread that
+ * runs past its budget is scheduled as though its deadline were one period
+ * later, so it cannot delay threads whose deadlines it was not entitled to
+ * take. The job keeps its real deadline, and a miss is recorded as soon as
+ * it runs out of budget after that deadline.
+ * 
+ * <p>
+ * A thread is charged for the ticks from when it is switched to until it is
+ * switched away from. Budgets are checked, and threads woken with an earlier
+ * deadline preempt the running thread, at each timer interrupt.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new deadline-ordered thread queue.
+	 * 
+	 * @param transferPriority ignored. Threads do not donate their deadline.
+	 * @return a new deadline-ordered thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue();
+	}
+
+	/**
+	 * Make the specified thread periodic, with its first job released now.
+	 * Must be called with interrupts disabled.
+	 * 
+	 * @param thread the thread to make periodic.
+	 * @param period the number of ticks between releases.
+	 * @param deadline the number of ticks after each release by which the job
+	 * must be done.
+	 * @param budget the number of ticks the thread may run in each period.
+	 */
+	public void setDeadline(KThread thread, long period, long deadline,
+			long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+		ThreadState state = getThreadState(thread);
+		DeadlineQueue queue = state.queue;
+		if (queue != null)
+			queue.waiting.remove(state);
+
+		state.period = period;
+		state.relativeDeadline = deadline;
+		state.budget = budget;
+		state.release = Machine.timer().getTime();
+		state.deadline = state.release + deadline;
+		state.scheduledDeadline = state.deadline;
+		state.remaining = budget;
+		state.missed = false;
+
+		if (queue != null)
+			queue.waiting.add(state);
+	}
+
+	/**
+	 * Return the absolute deadline of the specified thread's current job, or
+	 * <tt>Long.MAX_VALUE</tt> if it has none.
+	 * 
+	 * @param thread the thread whose deadline to return.
+	 * @return the absolute deadline of the thread.
+	 */
+	public long getDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).deadline;
+	}
+
+	/**
+	 * Called by a periodic thread when its job for the current period is done.
+	 * Count a deadline miss if it is late and one has not been counted yet,
+	 * then sleep until the next release, one period after this job's. A job
+	 * that finishes after the next release has already passed starts the next
+	 * one immediately.
+	 */
+	public void nextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		Lib.assertTrue(state.period > 0);
+
+		long now = Machine.timer().getTime();
+		if (now > state.deadline && !state.missed)
+			recordDeadlineMiss();
+
+		state.release = Math.max(state.release + state.period, now);
+		state.deadline = state.release + state.relativeDeadline;
+		state.scheduledDeadline = state.deadline;
+		state.remaining = state.budget;
+		state.missed = false;
+
+		Machine.interrupt().restore(intStatus);
+
+		if (state.release > now)
+			ThreadedKernel.alarm.waitUntil(state.release - now);
+	}
+
+	/**
+	 * Charge the current thread for the time since it was switched to or last
+	 * charged. If it has used up its budget, count a deadline miss if its job
+	 * is already late, schedule it by a deadline one period later, and preempt
+	 * it. Also preempt it if a thread with an earlier deadline has been woken
+	 * since the last interrupt.
+	 */
+	public void timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		long now = Machine.timer().getTime();
+		charge(state, now);
+
+		boolean preempt = wokenDeadline < state.scheduledDeadline;
+		wokenDeadline = Long.MAX_VALUE;
+
+		if (state.period > 0 && state.remaining <= 0) {
+			if (now > state.deadline && !state.missed) {
+				state.missed = true;
+				recordDeadlineMiss();
+			}
+
+			// the running thread is in no queue, so it can be reordered
+			state.scheduledDeadline += state.period;
+			state.remaining += state.budget;
+			preempt = true;
+		}
+
+		if (preempt)
+			KThread.yield();
+	}
+
+	/**
+	 * Charge a thread for the ticks it has run since <tt>lastCharge</tt>.
+	 */
+	private void charge(ThreadState state, long now) {
+		if (state.period > 0)
+			state.remaining -= now - lastCharge;
+
+		lastCharge = now;
+	}
+
+	/**
+	 * Count a missed deadline here, for the self-tests, and in the machine
+	 * statistics.
+	 */
+	private void recordDeadlineMiss() {
+		numDeadlineMisses++;
+		Machine.recordDeadlineMiss();
+	}
+
+	/**
+	 * Run a periodic thread that needs a fifth of the CPU alongside a thread
+	 * that never blocks, and report how many deadlines the periodic thread
+	 * missed. Under this scheduler it should miss none.
+	 */
+	public static void selfTest() {
+		final int numJobs = 20;
+		final boolean[] done = new boolean[1];
+		final long end = Machine.timer().getTime() + 20 * numJobs * 5000;
+		final boolean edf = ThreadedKernel.scheduler instanceof EDFScheduler;
+		final EDFScheduler scheduler = edf ? (EDFScheduler) ThreadedKernel.scheduler
+				: null;
+		final int missed = edf ? scheduler.numDeadlineMisses : 0;
+
+		// misses counted by the test itself under other schedulers, so that
+		// they do not show up in the machine statistics
+		final int[] misses = new int[1];
+
+		KThread periodic = new KThread(new Runnable() {
+			public void run() {
+				if (edf) {
+					Machine.interrupt().disable();
+					scheduler.setDeadline(KThread.currentThread(), 5000, 4000,
+							2000);
+					Machine.interrupt().enable();
+				}
+
+				long release = Machine.timer().getTime();
+				for (int i = 0; i < numJobs; i++) {
+					work(1000);
+
+					if (edf) {
+						scheduler.nextPeriod();
+					}
+					else {
+						// count misses the same way nextPeriod() would
+						long now = Machine.timer().getTime();
+						if (now > release + 4000)
+							misses[0]++;
+						release = Math.max(release + 5000, now);
+						if (release > now)
+							ThreadedKernel.alarm.waitUntil(release - now);
+					}
+				}
+				done[0] = true;
+			}
+		}).setName("periodic");
+
+		KThread background = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0] && Machine.timer().getTime() < end) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		}).setName("background");
+
+		periodic.fork();
+		background.fork();
+		periodic.join();
+		background.join();
+
+		if (edf)
+			misses[0] = scheduler.numDeadlineMisses - missed;
+		System.out.println("EDFScheduler.selfTest: " + misses[0] + " of "
+				+ numJobs + " deadlines missed");
+		if (edf)
+			Lib.assertTrue(misses[0] == 0);
+
+		overrunTest();
+	}
+
+	/**
+	 * Run a periodic thread whose every job takes longer than both its budget
+	 * and its relative deadline, alongside a thread that never blocks. Check
+	 * that every job is counted as a miss, exactly once, and that each job is
+	 * released one period after the last.
+	 */
+	private static void overrunTest() {
+		if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		final EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+		final int numJobs = 5;
+		final long period = 10000;
+		final boolean[] done = new boolean[1];
+		final long[] maxGap = new long[1];
+		final int missed = scheduler.numDeadlineMisses;
+
+		KThread periodic = new KThread(new Runnable() {
+			public void run() {
+				Machine.interrupt().disable();
+				scheduler.setDeadline(KThread.currentThread(), period, 2000,
+						1000);
+				Machine.interrupt().enable();
+
+				long start = Machine.timer().getTime();
+				for (int i = 0; i < numJobs; i++) {
+					work(4000);
+					scheduler.nextPeriod();
+
+					long now = Machine.timer().getTime();
+					maxGap[0] = Math.max(maxGap[0], now - start);
+					start = now;
+				}
+				done[0] = true;
+			}
+		}).setName("overrun");
+
+		KThread background = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0]) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		}).setName("background");
+
+		periodic.fork();
+		background.fork();
+		periodic.join();
+		background.join();
+
+		int misses = scheduler.numDeadlineMisses - missed;
+		System.out.println("EDFScheduler.overrunTest: " + misses + " of "
+				+ numJobs + " deadlines missed, at most " + maxGap[0]
+				+ " ticks between releases");
+		Lib.assertTrue(misses == numJobs);
+		Lib.assertTrue(maxGap[0] < period + period / 2);
+	}
+
+	/**
+	 * Spend about <i>ticks</i> ticks in the kernel without blocking.
+	 */
+	private static void work(long ticks) {
+		long end = Machine.timer().getTime() + ticks;
+		while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that is a heap ordered by absolute deadline, and
+	 * then by when threads started waiting.
+	 */
+	protected class DeadlineQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the heap. A thread other than the current thread is
+		 * being woken, and may preempt the current thread at the next timer
+		 * interrupt if its deadline is earlier.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.queue == null);
+
+			state.queue = this;
+			state.waitTime = numWaits++;
+			waiting.add(state);
+
+			if (thread != KThread.currentThread())
+				wokenDeadline = Math.min(wokenDeadline, state.scheduledDeadline);
+		}
+
+		/**
+		 * Remove the thread with the earliest deadline. If the current thread
+		 * has stopped running, this is the ready queue choosing the thread to
+		 * switch to, so the current thread is charged for the time it ran.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			KThread current = KThread.currentThread();
+			if (!current.isRunning())
+				charge(getThreadState(current), Machine.timer().getTime());
+
+			ThreadState state = waiting.poll();
+			if (state == null)
+				return null;
+
+			state.queue = null;
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(waiting.isEmpty());
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.queue != this)
+				return false;
+
+			waiting.remove(state);
+			state.queue = null;
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = waiting.iterator(); i.hasNext();)
+				System.out.print(i.next().thread + " ");
+		}
+
+		private PriorityQueue<ThreadState> waiting = new PriorityQueue<ThreadState>(
+				11, new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.scheduledDeadline != b.scheduledDeadline)
+							return a.scheduledDeadline < b.scheduledDeadline ? -1
+									: 1;
+						return Long.compare(a.waitTime, b.waitTime);
+					}
+				});
+	}
+
+	/**
+	 * The real-time parameters of a thread, and the state of its current job.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The period, relative deadline and budget, or 0 if not periodic. */
+		protected long period = 0, relativeDeadline = 0, budget = 0;
+
+		/** The release time and absolute deadline of the current job. */
+		protected long release = 0, deadline = Long.MAX_VALUE;
+
+		/**
+		 * The deadline the thread is scheduled by: that of the current job,
+		 * plus a period for each time the job has run out of budget.
+		 */
+		protected long scheduledDeadline = Long.MAX_VALUE;
+
+		/** The ticks left in the current period's budget. */
+		protected long remaining = 0;
+
+		/** <tt>true</tt> if the current job has been counted as a miss. */
+		protected boolean missed = false;
+
+		private DeadlineQueue queue = null;
+
+		private long waitTime;
+	}
+
+	private long numWaits = 0;
+
+	/** The number of jobs that have missed their deadlines. */
+	private int numDeadlineMisses = 0;
+
+	/** When the current thread was switched to or last charged. */
+	private long lastCharge = 0;
+
+	/**
+	 * The earliest deadline of any thread woken since the last timer
+	 * interrupt.
+	 */
+	private long wokenDeadline = Long.MAX_VALUE;
+}
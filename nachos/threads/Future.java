@@ -1,33 +1,445 @@
 package nachos.threads;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
 import nachos.machine.*;
 
 /**
  * A <i>Future</i> is a convenient mechanism for using asynchonous
  * operations.
+ * 
+ * <p>
+ * Functions are run by a fixed pool of worker threads shared by every
+ * <i>Future</i>, so a <i>Future</i> does not cost a new <tt>KThread</tt>. The
+ * pool is started when the first <i>Future</i> is created, and its size can
+ * be set with <tt>Future.workers</tt>. Functions wait in a queue until a worker
+ * is free, in the order their <i>Future</i>s were created.
+ * 
+ * <p>
+ * A <i>Future</i> whose function has not started can be cancelled. Its
+ * function is then never run, and threads waiting in <tt>get()</tt> are woken
+ * and get a <tt>CancellationException</tt>.
  */
 public class Future {
-    /**
-     * Instantiate a new <i>Future</i>.  The <i>Future</i> will invoke
-     * the supplied <i>function</i> asynchronously in a KThread.  In
-     * particular, the constructor should not block as a consequence
-     * of invoking <i>function</i>.
-     */
-    public Future (IntSupplier function) {
-    }
-
-    /**
-     * Return the result of invoking the <i>function</i> passed in to
-     * the <i>Future</i> when it was created.  If the function has not
-     * completed when <i>get</i> is invoked, then the caller is
-     * blocked.  If the function has completed, then <i>get</i>
-     * returns the result of the function.  Note that <i>get</i> may
-     * be called any number of times (potentially by multiple
-     * threads), and it should always return the same value.
-     */
-    public int get () {
-	return -1;
-    }
+	/**
+	 * Instantiate a new <i>Future</i>.  The <i>Future</i> will invoke
+	 * the supplied <i>function</i> asynchronously in a KThread.  In
+	 * particular, the constructor should not block as a consequence
+	 * of invoking <i>function</i>.
+	 */
+	public Future(IntSupplier function) {
+		this();
+
+		submit(function);
+	}
+
+	/**
+	 * Instantiate a <i>Future</i> that is completed later by another
+	 * <i>Future</i>, rather than by running a function of its own.
+	 */
+	private Future() {
+		startWorkers();
+
+		completed = new Condition2(lock);
+	}
+
+	/**
+	 * Return the result of invoking the <i>function</i> passed in to
+	 * the <i>Future</i> when it was created.  If the function has not
+	 * completed when <i>get</i> is invoked, then the caller is
+	 * blocked.  If the function has completed, then <i>get</i>
+	 * returns the result of the function.  Note that <i>get</i> may
+	 * be called any number of times (potentially by multiple
+	 * threads), and it should always return the same value.
+	 * 
+	 * @throws CancellationException if the <i>Future</i> was cancelled.
+	 */
+	public int get() {
+		lock.acquire();
+		while (state < statusDone)
+			completed.sleep();
+		boolean cancelled = (state == statusCancelled);
+		lock.release();
+
+		if (cancelled)
+			throw new CancellationException();
+
+		return value;
+	}
+
+	/**
+	 * Cancel this <i>Future</i> if its function has not started, waking every
+	 * thread waiting for it. <i>Future</i>s that depend on it through
+	 * <tt>thenApply()</tt> are cancelled too.
+	 * 
+	 * @return <tt>true</tt> if this <i>Future</i> was cancelled.
+	 */
+	public boolean cancel() {
+		return finish(statusCancelled, 0);
+	}
+
+	/**
+	 * Test if this <i>Future</i> has completed or been cancelled, without
+	 * blocking.
+	 * 
+	 * @return <tt>true</tt> if <tt>get()</tt> would not block.
+	 */
+	public boolean isDone() {
+		return state >= statusDone;
+	}
+
+	/**
+	 * Test if this <i>Future</i> was cancelled.
+	 * 
+	 * @return <tt>true</tt> if this <i>Future</i> was cancelled.
+	 */
+	public boolean isCancelled() {
+		return state == statusCancelled;
+	}
+
+	/**
+	 * Arrange for <i>callback</i> to be run once this <i>Future</i> has
+	 * completed or been cancelled. It is run by the thread that completes
+	 * or cancels this <i>Future</i>, or right away if that has already
+	 * happened, so it should not block for long.
+	 * 
+	 * @param callback the callback to run.
+	 */
+	public void whenDone(Runnable callback) {
+		lock.acquire();
+		boolean done = (state >= statusDone);
+		if (!done)
+			callbacks.add(callback);
+		lock.release();
+
+		if (done)
+			callback.run();
+	}
+
+	/**
+	 * Return a new <i>Future</i> for the result of applying <i>function</i> to
+	 * the result of this one. Once this <i>Future</i> completes, the function
+	 * is queued for a worker. If this <i>Future</i> is cancelled, so is the new
+	 * one.
+	 * 
+	 * @param function the function to apply.
+	 * @return a <i>Future</i> for the result of <i>function</i>.
+	 */
+	public Future thenApply(final IntUnaryOperator function) {
+		final Future next = new Future();
+
+		whenDone(new Runnable() {
+			public void run() {
+				if (isCancelled()) {
+					next.cancel();
+				}
+				else {
+					next.submit(new IntSupplier() {
+						public int getAsInt() {
+							return function.applyAsInt(value);
+						}
+					});
+				}
+			}
+		});
+
+		return next;
+	}
+
+	/**
+	 * Return a <i>Future</i> that completes once every one of <i>futures</i>
+	 * has, with the number of them. It is cancelled if any of them is.
+	 * 
+	 * @param futures the <i>Future</i>s to wait for.
+	 * @return a <i>Future</i> that completes when they all have.
+	 */
+	public static Future allOf(Future... futures) {
+		final Future all = new Future();
+		final int[] left = new int[] { futures.length };
+
+		if (futures.length == 0)
+			all.finish(statusDone, 0);
+
+		for (final Future f : futures) {
+			f.whenDone(new Runnable() {
+				public void run() {
+					if (f.isCancelled())
+						all.cancel();
+					else if (countDown(left))
+						all.finish(statusDone, futures.length);
+				}
+			});
+		}
+
+		return all;
+	}
+
+	/**
+	 * Return a <i>Future</i> that completes with the result of whichever of
+	 * <i>futures</i> completes first. It is cancelled if all of them are.
+	 * 
+	 * @param futures the <i>Future</i>s to wait for. There must be at least
+	 * one.
+	 * @return a <i>Future</i> that completes when the first of them does.
+	 */
+	public static Future anyOf(Future... futures) {
+		Lib.assertTrue(futures.length > 0);
+
+		final Future any = new Future();
+		final int[] left = new int[] { futures.length };
+
+		for (final Future f : futures) {
+			f.whenDone(new Runnable() {
+				public void run() {
+					if (!f.isCancelled())
+						any.finish(statusDone, f.value);
+					else if (countDown(left))
+						any.cancel();
+				}
+			});
+		}
+
+		return any;
+	}
+
+	/**
+	 * Atomically decrement a count shared by the callbacks of
+	 * <tt>allOf()</tt> or <tt>anyOf()</tt>, which may run in different
+	 * threads.
+	 * 
+	 * @return <tt>true</tt> if the count reached zero.
+	 */
+	private static boolean countDown(int[] count) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean zero = (--count[0] == 0);
+		Machine.interrupt().restore(intStatus);
+
+		return zero;
+	}
+
+	/**
+	 * Queue <i>function</i> for a worker, unless this <i>Future</i> has
+	 * already been cancelled.
+	 */
+	private void submit(IntSupplier function) {
+		lock.acquire();
+		if (state == statusNew) {
+			this.function = function;
+			state = statusQueued;
+			tasks.add(this);
+			taskQueued.wake();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Complete or cancel this <i>Future</i>, if it has not been already, and
+	 * if cancelling, only if its function has not started. Wake the threads
+	 * waiting for it, then run its callbacks.
+	 * 
+	 * @return <tt>true</tt> if this call completed or cancelled it.
+	 */
+	private boolean finish(int newState, int value) {
+		lock.acquire();
+
+		boolean finished = (newState == statusDone) ? state < statusDone
+				: state < statusRunning;
+
+		ArrayList<Runnable> toRun = null;
+		if (finished) {
+			// a cancelled Future stays in the task queue, and is skipped
+			this.value = value;
+			state = newState;
+			function = null;
+			completed.wakeAll();
+
+			toRun = callbacks;
+			callbacks = null;
+		}
+
+		lock.release();
+
+		if (toRun != null) {
+			for (Runnable callback : toRun)
+				callback.run();
+		}
+
+		return finished;
+	}
+
+	/**
+	 * Start the worker threads, if that has not been done yet.
+	 */
+	private static void startWorkers() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean started = (lock != null);
+		if (!started) {
+			lock = new Lock();
+			taskQueued = new Condition2(lock);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		if (started)
+			return;
+
+		int numWorkers = Config.getInteger("Future.workers", 4);
+		Lib.assertTrue(numWorkers > 0);
+
+		for (int i = 0; i < numWorkers; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).setName("future worker " + i).fork();
+		}
+	}
+
+	/**
+	 * Run queued functions, one at a time, forever.
+	 */
+	private static void work() {
+		while (true) {
+			lock.acquire();
+			Future future = null;
+			while (future == null) {
+				while (tasks.isEmpty())
+					taskQueued.sleep();
+
+				future = tasks.removeFirst();
+				if (future.state != statusQueued)
+					future = null;
+			}
+			future.state = statusRunning;
+			IntSupplier function = future.function;
+			lock.release();
+
+			future.finish(statusDone, function.getAsInt());
+		}
+	}
+
+	/**
+	 * Test that this module is working. Fan out more <i>Future</i>s than
+	 * there are workers, chain and combine them, and cancel one that is still
+	 * queued while threads are waiting for it.
+	 */
+	public static void selfTest() {
+		final int numFutures = 20;
+
+		Future[] squares = new Future[numFutures];
+		for (int i = 0; i < numFutures; i++) {
+			final int n = i;
+			squares[i] = new Future(new IntSupplier() {
+				public int getAsInt() {
+					ThreadedKernel.alarm.waitUntil(100 * (numFutures - n));
+					return n * n;
+				}
+			});
+		}
+
+		Future all = allOf(squares);
+		Future any = anyOf(squares);
+		Future chained = squares[3].thenApply(new IntUnaryOperator() {
+			public int applyAsInt(int x) {
+				return x + 1;
+			}
+		}).thenApply(new IntUnaryOperator() {
+			public int applyAsInt(int x) {
+				return x * 2;
+			}
+		});
+
+		for (int i = 0; i < numFutures; i++)
+			Lib.assertTrue(squares[i].get() == i * i);
+		Lib.assertTrue(squares[5].get() == 25);
+		Lib.assertTrue(all.get() == numFutures);
+		Lib.assertTrue(chained.get() == 20);
+
+		int first = any.get();
+		Lib.assertTrue(Math.sqrt(first) == (int) Math.sqrt(first));
+
+		// keep every worker busy, so the next Future stays queued
+		final Semaphore go = new Semaphore(0);
+		int numWorkers = Config.getInteger("Future.workers", 4);
+		Future[] blockers = new Future[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			blockers[i] = new Future(new IntSupplier() {
+				public int getAsInt() {
+					go.P();
+					return 0;
+				}
+			});
+		}
+
+		final Future queued = new Future(new IntSupplier() {
+			public int getAsInt() {
+				Lib.assertNotReached("ran a cancelled Future");
+				return 0;
+			}
+		});
+		Future dependent = queued.thenApply(new IntUnaryOperator() {
+			public int applyAsInt(int x) {
+				return x;
+			}
+		});
+
+		final int[] cancelledSeen = new int[1];
+		KThread[] getters = new KThread[3];
+		for (int i = 0; i < getters.length; i++) {
+			getters[i] = new KThread(new Runnable() {
+				public void run() {
+					try {
+						queued.get();
+					}
+					catch (CancellationException e) {
+						cancelledSeen[0]++;
+					}
+				}
+			}).setName("getter" + i);
+			getters[i].fork();
+		}
+
+		// let the getters start waiting
+		ThreadedKernel.alarm.waitUntil(100);
+
+		Lib.assertTrue(queued.cancel());
+		Lib.assertTrue(!queued.cancel());
+		for (int i = 0; i < getters.length; i++)
+			getters[i].join();
+		Lib.assertTrue(cancelledSeen[0] == getters.length);
+		Lib.assertTrue(dependent.isCancelled());
+
+		for (int i = 0; i < numWorkers; i++)
+			go.V();
+		for (int i = 0; i < numWorkers; i++)
+			Lib.assertTrue(blockers[i].get() == 0);
+		Lib.assertTrue(!blockers[0].cancel());
+
+		System.out.println("Future.selfTest passed");
+	}
+
+	private static final int statusNew = 0;
+	private static final int statusQueued = 1;
+	private static final int statusRunning = 2;
+	private static final int statusDone = 3;
+	private static final int statusCancelled = 4;
+
+	private int state = statusNew;
+
+	private IntSupplier function = null;
+
+	private int value;
+
+	private Condition2 completed;
+
+	/** Run when this Future is done, or <tt>null</tt> once they have been. */
+	private ArrayList<Runnable> callbacks = new ArrayList<Runnable>();
+
+	/** Guards the state of every Future, and the task queue. */
+	private static Lock lock = null;
+
+	private static Condition2 taskQueued;
+
+	private static LinkedList<Future> tasks = new LinkedList<Future>();
 }
@@ -50,6 +50,40 @@ public class KThread {
 		return currentThread;
 	}
 
+	/**
+	 * Get the number of context switches so far, counting only switches to a
+	 * different thread.
+	 * 
+	 * @return the number of context switches.
+	 */
+	public static long getNumContextSwitches() {
+		return numContextSwitches;
+	}
+
+	/**
+	 * Test if this thread is the current thread and has not started to give
+	 * up the processor in <tt>yield()</tt>, <tt>sleep()</tt> or
+	 * <tt>finish()</tt>. A scheduler can use this to tell when the ready queue
+	 * is being asked for the next thread to run.
+	 * 
+	 * @return <tt>true</tt> if this thread is running.
+	 */
+	boolean isRunning() {
+		return status == statusRunning;
+	}
+
+	/**
+	 * Test if this thread has been made ready to run, or is the current thread
+	 * and is giving up the processor in <tt>yield()</tt>. The status is set
+	 * before the thread is added to the ready queue, so a scheduler can use
+	 * this to tell the ready queue from other queues.
+	 * 
+	 * @return <tt>true</tt> if this thread is ready.
+	 */
+	boolean isReady() {
+		return status == statusReady;
+	}
+
 	/**
 	 * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
 	 * create an idle thread as well.
@@ -353,8 +387,14 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			// only the idle thread is left, so nothing can happen until the
+			// next interrupt; skip straight to it unless tracing threads
+			if (currentThread == idleThread && !Lib.test(dbgThread))
+				Machine.interrupt().idle();
+
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -388,6 +428,9 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		if (currentThread != this)
+			numContextSwitches++;
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -649,6 +692,59 @@ public class KThread {
 		System.out.println("is it? " + (child1.status == statusFinished));
 		Lib.assertTrue((child1.status == statusFinished), " Expected child1 to be finished.");
 	}
+
+	/**
+	 * Fork and join <i>n</i> short-lived threads one after another, and
+	 * report how long it took. Since each thread is destroyed before the
+	 * next is forked, this mostly measures TCB start and destroy.
+	 */
+	public static void forkJoinBenchmark(int n) {
+		final int[] count = new int[1];
+		Runnable target = new Runnable() {
+			public void run() {
+				count[0]++;
+			}
+		};
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			KThread child = new KThread(target).setName("child");
+			child.fork();
+			child.join();
+		}
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+		Lib.assertTrue(count[0] == n, " Expected every child to run once.");
+		System.out.println("forkJoinBenchmark: " + n + " threads in "
+				+ elapsed + " ms, " + (n * 1000L / elapsed) + " per second");
+	}
+
+	/**
+	 * Ping-pong between this thread and a forked thread with <i>n</i> yields
+	 * each, and report the average cost of a context switch. Run it once per
+	 * <tt>TCB.backend</tt> to compare them.
+	 */
+	public static void contextSwitchBenchmark(final int n) {
+		KThread child = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < n; i++)
+					KThread.yield();
+			}
+		}).setName("ping");
+		child.fork();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			KThread.yield();
+		child.join();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("contextSwitchBenchmark: " + (2 * n)
+				+ " switches, " + (elapsed / (2L * n)) + " ns per switch, "
+				+ (2L * n * 1000000000L / Math.max(elapsed, 1))
+				+ " yields per second");
+	}
+
 	public static void selfTest() {
 		Lib.debug(dbgThread, "Enter KThread.selfTest");
 
@@ -702,6 +798,9 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
+	/** Number of times a different thread was switched to. */
+	private static long numContextSwitches = 0;
+
 	private static ThreadQueue readyQueue = null;
 
 	private static KThread currentThread = null;
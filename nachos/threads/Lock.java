@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashSet;
+
 /**
  * A <tt>Lock</tt> is a synchronization primitive that has two states,
  * <i>busy</i> and <i>free</i>. There are only two operations allowed on a lock:
@@ -49,6 +51,42 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically acquire this lock, waiting at most <i>timeout</i> ticks for
+	 * it to become free. The current thread must not already hold this lock.
+	 * A thread that gives up waiting is taken off the lock's wait queue, and
+	 * no longer donates priority to the holder.
+	 * 
+	 * @param timeout the maximum number of ticks to wait, or 0 not to wait.
+	 * @return <tt>true</tt> if the current thread now holds this lock.
+	 */
+	public boolean tryAcquire(long timeout) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		final KThread thread = KThread.currentThread();
+
+		if (lockHolder == null) {
+			waitQueue.acquire(thread);
+			lockHolder = thread;
+		}
+		else if (timeout > 0) {
+			waitQueue.waitForAccess(thread);
+			timedWaiters.add(thread);
+			ThreadedKernel.alarm.waitUntil(timeout, new Runnable() {
+				public void run() {
+					Lib.assertTrue(waitQueue.remove(thread));
+				}
+			});
+			timedWaiters.remove(thread);
+		}
+
+		boolean acquired = (lockHolder == thread);
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -57,12 +95,33 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
-			lockHolder.ready();
+		if ((lockHolder = waitQueue.nextThread()) != null) {
+			// a thread in tryAcquire() is woken by cancelling its timer
+			if (timedWaiters.remove(lockHolder))
+				Lib.assertTrue(ThreadedKernel.alarm.cancel(lockHolder));
+			else
+				lockHolder.ready();
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Make <i>thread</i> wait for this lock as though it had called
+	 * <tt>acquire()</tt> while the lock was busy. <tt>Condition2</tt> uses
+	 * this to move a woken thread straight onto the lock, which the current
+	 * thread holds, instead of making it ready only for it to block here.
+	 * Interrupts must be disabled.
+	 * 
+	 * @param thread a blocked thread that does not hold this lock.
+	 */
+	void transfer(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(lockHolder != null && lockHolder != thread);
+
+		waitQueue.waitForAccess(thread);
+	}
+
 	/**
 	 * Test if the current thread holds this lock.
 	 * 
@@ -72,8 +131,45 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Have a thread hold a lock for a while, and another try to acquire it,
+	 * first giving up before it is released and then waiting long enough.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				ThreadedKernel.alarm.waitUntil(5000);
+				lock.release();
+			}
+		}).setName("holder");
+		holder.fork();
+
+		// let the holder take the lock
+		ThreadedKernel.alarm.waitUntil(100);
+
+		long t0 = Machine.timer().getTime();
+		Lib.assertTrue(!lock.tryAcquire(0));
+		Lib.assertTrue(!lock.tryAcquire(1000));
+		long t1 = Machine.timer().getTime();
+		Lib.assertTrue(lock.tryAcquire(100000));
+		long t2 = Machine.timer().getTime();
+		lock.release();
+
+		System.out.println("Lock.selfTest: gave up after " + (t1 - t0)
+				+ " ticks, acquired after " + (t2 - t1) + " more");
+		Lib.assertTrue(t1 - t0 >= 1000 && t2 - t1 < 100000);
+
+		holder.join();
+	}
+
 	private KThread lockHolder = null;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
+
+	/** The threads waiting in <tt>tryAcquire()</tt> with a timer set. */
+	private HashSet<KThread> timedWaiters = new HashSet<KThread>();
 }
@@ -41,7 +41,458 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Hold lotteries among thousands of threads with different numbers of
+	 * tickets, and check that each group of threads wins in proportion to the
+	 * tickets it holds. Also check that tickets are transferred through a
+	 * chain of queues, and report how many draws per second a queue sustains.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		// threads in group g hold g+1 tickets each
+		int numThreads = 4000, numGroups = 4, numDraws = 200000;
+		KThread[] threads = new KThread[numThreads];
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		long totalTickets = 0;
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("lottery " + i);
+			scheduler.setPriority(threads[i], i % numGroups + 1);
+			totalTickets += i % numGroups + 1;
+			queue.waitForAccess(threads[i]);
+		}
+
+		long[] wins = new long[numGroups];
+		long start = System.nanoTime();
+		for (int i = 0; i < numDraws; i++) {
+			KThread winner = queue.nextThread();
+			wins[scheduler.getPriority(winner) - 1]++;
+			queue.waitForAccess(winner);
+		}
+		long elapsed = Math.max(System.nanoTime() - start, 1);
+
+		for (int g = 0; g < numGroups; g++) {
+			double expected = (double) (g + 1) * (numThreads / numGroups)
+					/ totalTickets;
+			double actual = (double) wins[g] / numDraws;
+			System.out.println("lottery: " + (g + 1) + " tickets, expected "
+					+ expected + " of wins, got " + actual);
+			Lib.assertTrue(Math.abs(actual - expected) < 0.01);
+		}
+		System.out.println("lottery: " + numDraws + " draws among "
+				+ numThreads + " threads, " + (numDraws * 1000000000L / elapsed)
+				+ " per second");
+
+		// threads[0] holds lock0, which threads[1] waits on while holding
+		// lock1, which threads[2] and threads[3] wait on
+		for (int i = 0; i < numThreads; i++)
+			queue.nextThread();
+		ThreadQueue lock0 = scheduler.newThreadQueue(true);
+		ThreadQueue lock1 = scheduler.newThreadQueue(true);
+		lock0.acquire(threads[0]);
+		lock1.acquire(threads[1]);
+		lock0.waitForAccess(threads[1]);
+		lock1.waitForAccess(threads[2]);
+		lock1.waitForAccess(threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 2 + 3 + 4);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1 + 9);
+
+		scheduler.setPriority(threads[3], 10);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1 + 15);
+
+		Lib.assertTrue(lock0.nextThread() == threads[1]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+		KThread next = lock1.nextThread();
+		Lib.assertTrue(next == threads[2] || next == threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 2);
+		Lib.assertTrue(scheduler.getEffectivePriority(next) == scheduler
+				.getPriority(next)
+				+ scheduler.getPriority(next == threads[2] ? threads[3] : threads[2]));
+
+		Machine.interrupt().restore(intStatus);
+		System.out.println("LotteryScheduler.selfTest passed");
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the lottery state of the specified thread.
+	 * 
+	 * @param thread the thread whose lottery state to return.
+	 * @return the lottery state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+	 * so that adding a thread, changing its tickets and drawing a winner all
+	 * take time logarithmic in the number of waiting threads.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (owner != null)
+				owner.release(this);
+
+			if (totalTickets == 0)
+				return null;
+
+			LotteryState next = slots[draw()];
+			remove(next);
+			next.waitingOn = null;
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Take a thread's tickets out of the lottery, and back from the owner
+		 * if this queue transfers tickets.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			state.waitingOn = null;
+
+			if (transferPriority && owner != null)
+				owner.transfer(-state.effectiveTickets);
+
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 1; slot <= numSlots; slot++) {
+				if (slots[slot] != null)
+					System.out.print(slots[slot].thread + " ");
+			}
+		}
+
+		/**
+		 * Pick a winning ticket uniformly at random, and return the slot of
+		 * the thread holding it, by descending the Fenwick tree.
+		 */
+		private int draw() {
+			long ticket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) totalTickets);
+			else
+				ticket = (long) (Lib.random() * totalTickets);
+
+			int slot = 0;
+			for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+				if (slot + step <= capacity && tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return slot + 1;
+		}
+
+		private void add(LotteryState state) {
+			int slot;
+			if (numFree > 0)
+				slot = free[--numFree];
+			else {
+				if (numSlots == capacity)
+					grow();
+				slot = ++numSlots;
+			}
+
+			state.slot = slot;
+			slots[slot] = state;
+			adjust(state, state.effectiveTickets);
+		}
+
+		private void remove(LotteryState state) {
+			adjust(state, -tickets[state.slot]);
+			slots[state.slot] = null;
+			free[numFree++] = state.slot;
+		}
+
+		/**
+		 * Add <i>delta</i> to the tickets of a waiting thread.
+		 */
+		private void adjust(LotteryState state, long delta) {
+			tickets[state.slot] += delta;
+			totalTickets += delta;
+
+			for (int i = state.slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int newCapacity = capacity * 2;
+
+			LotteryState[] newSlots = new LotteryState[newCapacity + 1];
+			long[] newTickets = new long[newCapacity + 1];
+			System.arraycopy(slots, 0, newSlots, 0, capacity + 1);
+			System.arraycopy(tickets, 0, newTickets, 0, capacity + 1);
+
+			long[] newTree = new long[newCapacity + 1];
+			for (int i = 1; i <= newCapacity; i++) {
+				newTree[i] += newTickets[i];
+				int parent = i + (i & -i);
+				if (parent <= newCapacity)
+					newTree[parent] += newTree[i];
+			}
+
+			int[] newFree = new int[newCapacity];
+			System.arraycopy(free, 0, newFree, 0, numFree);
+
+			capacity = newCapacity;
+			slots = newSlots;
+			tickets = newTickets;
+			tree = newTree;
+			free = newFree;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers tickets.
+		 */
+		private LotteryState owner = null;
+
+		private int capacity = 8;
+
+		/** The waiting thread in each slot, indexed from 1. */
+		private LotteryState[] slots = new LotteryState[capacity + 1];
+
+		/** The tickets of the thread in each slot. */
+		private long[] tickets = new long[capacity + 1];
+
+		/** The Fenwick tree over <tt>tickets</tt>. */
+		private long[] tree = new long[capacity + 1];
+
+		private long totalTickets = 0;
+
+		/** The highest slot ever used, and the slots freed below it. */
+		private int numSlots = 0;
+
+		private int[] free = new int[capacity];
+
+		private int numFree = 0;
+	}
+
+	/**
+	 * The lottery state of a thread: its tickets, the tickets donated to it
+	 * through queues it holds, and the queue it is waiting on, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			setTickets(priorityDefault);
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = tickets - this.tickets;
+			this.tickets = tickets;
+
+			transfer(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>. Its tickets join the lottery, and are donated to
+		 * the owner of <tt>waitQueue</tt> if it transfers tickets.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.transfer(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>. It receives the tickets of every
+		 * thread still waiting on <tt>waitQueue</tt>, if it transfers tickets.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+
+			transfer(waitQueue.totalTickets);
+		}
+
+		private void release(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+
+			transfer(-waitQueue.totalTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of this thread, and to
+		 * every thread it is donating to along the wait-for chain. Each step
+		 * updates one Fenwick tree, so this takes time logarithmic in the
+		 * queue sizes for each thread on the chain.
+		 */
+		private void transfer(long delta) {
+			if (delta == 0)
+				return;
+
+			LotteryState state = this;
+			do {
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.adjust(state, delta);
+
+				if (!queue.transferPriority)
+					return;
+
+				state = queue.owner;
+			} while (state != null && state != this);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets = 0;
+
+		/**
+		 * The tickets of the associated thread plus those donated to it.
+		 */
+		protected long effectiveTickets = 0;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitingOn = null;
+
+		private int slot;
 	}
 }
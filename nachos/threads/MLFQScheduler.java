@@ -0,0 +1,368 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of several
+ * levels, and a thread at a higher level always runs before a thread at a
+ * lower one. Within a level, threads are served round-robin.
+ * 
+ * <p>
+ * New threads start at the top level. A thread that runs for its level's
+ * whole quantum without blocking is moved down a level and preempted, and
+ * each level down has a quantum twice as long as the one above it. A thread
+ * that blocks (for example waiting for the console in <tt>SynchConsole</tt>,
+ * or sleeping in the <tt>Alarm</tt> for <tt>StubFileSystem</tt>) is moved up
+ * a level when it is woken, and preempts the running thread at the next timer
+ * interrupt if the running thread is at a lower level. CPU-bound threads
+ * therefore sink while interactive ones stay near the top. To keep CPU-bound
+ * threads from starving, every thread is moved back to the top level
+ * periodically.
+ * 
+ * <p>
+ * Quanta are measured in timer interrupts. The number of levels, the top
+ * level's quantum and the boost interval can be set with
+ * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+		quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50);
+
+		Lib.assertTrue(numLevels > 0 && numLevels <= 16);
+		Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+		wokenLevel = numLevels;
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 * 
+	 * @param transferPriority ignored. Threads do not donate their level.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MultiLevelQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread, which is 0 for the bottom
+	 * level and increases towards the top.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	/**
+	 * Charge the current thread for one timer interrupt. Preempt it if it has
+	 * used up its quantum, in which case it also drops a level, or if a
+	 * thread at a higher level has been woken since the last interrupt.
+	 */
+	public void timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (++numTimerInterrupts % boostInterval == 0)
+			boostEpoch++;
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		int level = state.getLevel();
+
+		int woken = wokenLevel;
+		wokenLevel = numLevels;
+
+		if (++state.used >= quantum << level) {
+			state.used = 0;
+			if (level < numLevels - 1)
+				state.level++;
+		}
+		else if (woken < level) {
+			state.preempted = true;
+		}
+		else {
+			return;
+		}
+
+		KThread.yield();
+	}
+
+	/**
+	 * Run a CPU-bound thread alongside an interactive thread that repeatedly
+	 * sleeps for a short time, and report how long the interactive thread
+	 * waits between being woken and running. Under this scheduler the
+	 * CPU-bound thread sinks to the bottom level, so the interactive thread
+	 * runs within a timer interrupt of being woken.
+	 */
+	public static void selfTest() {
+		final int numWakes = 20;
+		final long[] latency = new long[1];
+		final boolean[] done = new boolean[1];
+
+		// bounded, so that the test still ends under a scheduler that never
+		// preempts
+		final long end = Machine.timer().getTime() + 10 * numWakes * 1000;
+
+		KThread cpu = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0] && Machine.timer().getTime() < end) {
+					// spend time in the kernel without blocking
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		}).setName("cpu");
+
+		KThread interactive = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < numWakes; i++) {
+					long wake = Machine.timer().getTime() + 1000;
+					ThreadedKernel.alarm.waitUntil(1000);
+					latency[0] += Machine.timer().getTime() - wake;
+				}
+				done[0] = true;
+			}
+		}).setName("interactive");
+
+		interactive.fork();
+		cpu.fork();
+		interactive.join();
+		cpu.join();
+
+		System.out.println("MLFQScheduler.selfTest: average wake-up latency "
+				+ latency[0] / numWakes + " ticks");
+		if (ThreadedKernel.scheduler instanceof MLFQScheduler)
+			Lib.assertTrue(latency[0] / numWakes < 2 * Stats.TimerTicks);
+
+		wakeLevelTest();
+	}
+
+	/**
+	 * Have a thread at the bottom level wait on a condition variable, then
+	 * wake it. Check that it moves up only one level: not when
+	 * <tt>wake()</tt> moves it onto the lock's queue, but when the lock is
+	 * released and it is made ready.
+	 */
+	private static void wakeLevelTest() {
+		if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+			return;
+
+		final MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+		final Lock lock = new Lock();
+		final Condition2 cv = new Condition2(lock);
+
+		KThread waiter = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				cv.sleep();
+				lock.release();
+			}
+		}).setName("waiter");
+
+		waiter.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+
+		// no timer interrupt, and so no boost, until interrupts are restored
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadState state = scheduler.getThreadState(waiter);
+		int bottom = scheduler.numLevels - 1;
+		state.refreshLevel();
+		state.level = bottom;
+
+		lock.acquire();
+		cv.wake();
+		Lib.assertTrue(state.level == bottom);
+		lock.release();
+		Lib.assertTrue(state.level == Math.max(bottom - 1, 0));
+
+		Machine.interrupt().restore(intStatus);
+		waiter.join();
+
+		System.out.println("MLFQScheduler.wakeLevelTest: ok");
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO per level.
+	 */
+	protected class MultiLevelQueue extends ThreadQueue {
+		MultiLevelQueue() {
+			levels = new ArrayList<ArrayDeque<KThread>>(numLevels);
+			for (int i = 0; i < numLevels; i++)
+				levels.add(new ArrayDeque<KThread>());
+		}
+
+		/**
+		 * Add a thread to the queue at its level. A thread other than the
+		 * current thread that is being made ready is being woken after
+		 * blocking, so it moves up a level first. A blocked thread moved from
+		 * one queue to another, as <tt>Condition2</tt> does, is not promoted
+		 * until it is made ready. A thread that was preempted before its
+		 * quantum ran out goes to the front of its level, and any other thread
+		 * to the back.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			int level = state.getLevel();
+
+			if (thread != KThread.currentThread() && thread.isReady()) {
+				state.used = 0;
+				if (level > 0)
+					state.level = --level;
+				wokenLevel = Math.min(wokenLevel, level);
+			}
+
+			if (state.preempted) {
+				state.preempted = false;
+				levels.get(level).addFirst(thread);
+			}
+			else {
+				levels.get(level).addLast(thread);
+			}
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (epoch != boostEpoch)
+				boost();
+
+			for (int level = 0; level < numLevels; level++) {
+				if (!levels.get(level).isEmpty())
+					return levels.get(level).removeFirst();
+			}
+
+			return null;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++)
+				Lib.assertTrue(levels.get(level).isEmpty());
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				if (levels.get(level).removeFirstOccurrence(thread))
+					return true;
+			}
+
+			return false;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (Iterator<KThread> i = levels.get(level).iterator(); i.hasNext();)
+					System.out.print(i.next() + " ");
+			}
+		}
+
+		/**
+		 * Move every waiting thread to the top level, keeping their order.
+		 */
+		private void boost() {
+			epoch = boostEpoch;
+
+			for (int level = 1; level < numLevels; level++) {
+				while (!levels.get(level).isEmpty()) {
+					KThread thread = levels.get(level).removeFirst();
+					getThreadState(thread).refreshLevel();
+					levels.get(0).addLast(thread);
+				}
+			}
+		}
+
+		private ArrayList<ArrayDeque<KThread>> levels;
+
+		private int epoch = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level and how much of its quantum
+	 * it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the associated thread, first moving it to the
+		 * top if a boost has happened since it was last looked at.
+		 * 
+		 * @return the level of the associated thread, 0 being the top.
+		 */
+		public int getLevel() {
+			refreshLevel();
+
+			return level;
+		}
+
+		/**
+		 * Move the associated thread to the top level if a boost has happened
+		 * since it was last looked at.
+		 */
+		public void refreshLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+		}
+
+		/** The level of the associated thread, 0 being the top. */
+		protected int level = 0;
+
+		/** The timer interrupts charged to the thread at this level. */
+		protected int used = 0;
+
+		/**
+		 * <tt>true</tt> if the thread was preempted by a higher level thread
+		 * before using up its quantum.
+		 */
+		protected boolean preempted = false;
+
+		private int epoch = boostEpoch;
+	}
+
+	private int numLevels;
+
+	private int quantum;
+
+	private int boostInterval;
+
+	private int numTimerInterrupts = 0;
+
+	/** Incremented every <tt>boostInterval</tt> timer interrupts. */
+	private int boostEpoch = 0;
+
+	/**
+	 * The highest level (lowest number) of any thread woken since the last
+	 * timer interrupt, or <tt>numLevels</tt> if none was.
+	 */
+	private int wokenLevel;
+}
@@ -97,6 +97,178 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test that queues hand out threads by priority, first come first served
+	 * within a priority, and that priority is donated through a chain of
+	 * queues that transfer priority and withdrawn when they are released.
+	 */
+	public static void selfTest() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread[] threads = new KThread[4];
+		int[] priorities = { 3, 1, 3, 7 };
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("priority " + i);
+			scheduler.setPriority(threads[i], priorities[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// threads[0] holds lock0, which threads[1] waits on while holding
+		// lock1, which threads[3] waits on
+		ThreadQueue lock0 = scheduler.newThreadQueue(true);
+		ThreadQueue lock1 = scheduler.newThreadQueue(true);
+		lock0.acquire(threads[0]);
+		lock1.acquire(threads[1]);
+		lock0.waitForAccess(threads[1]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 3);
+		lock1.waitForAccess(threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 7);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 7);
+
+		scheduler.setPriority(threads[3], 5);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 5);
+
+		Lib.assertTrue(lock0.nextThread() == threads[1]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 3);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 5);
+
+		Lib.assertTrue(lock1.nextThread() == threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 1);
+		Lib.assertTrue(lock0.nextThread() == null);
+		Lib.assertTrue(lock1.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+		System.out.println("PriorityScheduler.selfTest passed");
+
+		for (int length = 100; length <= 800; length *= 2)
+			donationChainTest(length);
+		for (int length = 100; length <= 400; length *= 2)
+			crowdedChainTest(length, 50);
+	}
+
+	/**
+	 * Build a chain of <i>length</i> threads, each holding one lock and
+	 * waiting on the lock held by the previous thread, then have a thread of
+	 * maximum priority wait on the last lock. Check that the donation reaches
+	 * the head of the chain, that it is withdrawn as the chain unwinds, and
+	 * that the number of threads visited grows only linearly with the length
+	 * of the chain.
+	 */
+	private static void donationChainTest(int length) {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread[] threads = new KThread[length];
+		ThreadQueue[] locks = new ThreadQueue[length];
+		for (int i = 0; i < length; i++) {
+			threads[i] = new KThread().setName("chain " + i);
+			locks[i] = scheduler.newThreadQueue(true);
+			locks[i].acquire(threads[i]);
+			if (i > 0)
+				locks[i - 1].waitForAccess(threads[i]);
+		}
+
+		KThread top = new KThread().setName("top");
+		scheduler.setPriority(top, priorityMaximum);
+
+		long steps = scheduler.donationSteps;
+		long start = System.nanoTime();
+		locks[length - 1].waitForAccess(top);
+		long donateTime = System.nanoTime() - start;
+		long donateSteps = scheduler.donationSteps - steps;
+
+		for (int i = 0; i < length; i++)
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) == priorityMaximum);
+		Lib.assertTrue(donateSteps <= length + 1);
+
+		// unwind from the head: each thread releases its lock to the next
+		for (int i = 0; i < length - 1; i++) {
+			Lib.assertTrue(locks[i].nextThread() == threads[i + 1]);
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) == priorityDefault);
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[i + 1]) == priorityMaximum);
+		}
+		Lib.assertTrue(locks[length - 1].nextThread() == top);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[length - 1]) == priorityDefault);
+
+		Machine.interrupt().restore(intStatus);
+		System.out.println("donationChainTest: chain of " + length + ", "
+				+ donateSteps + " steps, " + donateTime / 1000 + " us");
+	}
+
+	/**
+	 * Build a chain of <i>length</i> threads as in <tt>donationChainTest</tt>,
+	 * but with <i>crowd</i> more threads of the same priority waiting on each
+	 * lock behind the chain thread. Raise and then lower the priority of a
+	 * thread waiting on the last lock, so that each chain thread leaves its
+	 * crowded level and comes back to it. Check that the number of threads
+	 * visited does not depend on the crowds, and that a thread that comes
+	 * back to its level goes behind the crowd.
+	 */
+	private static void crowdedChainTest(int length, int crowd) {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread[] threads = new KThread[length];
+		ThreadQueue[] locks = new ThreadQueue[length];
+		KThread[] firstCrowd = new KThread[crowd];
+		for (int i = 0; i < length; i++) {
+			threads[i] = new KThread().setName("chain " + i);
+			locks[i] = scheduler.newThreadQueue(true);
+			locks[i].acquire(threads[i]);
+			if (i > 0) {
+				locks[i - 1].waitForAccess(threads[i]);
+				for (int j = 0; j < crowd; j++) {
+					KThread t = new KThread().setName("crowd " + i + "." + j);
+					locks[i - 1].waitForAccess(t);
+					if (i == 1)
+						firstCrowd[j] = t;
+				}
+			}
+		}
+
+		KThread top = new KThread().setName("top");
+		locks[length - 1].waitForAccess(top);
+
+		long steps = scheduler.donationSteps;
+		long start = System.nanoTime();
+		scheduler.setPriority(top, priorityMaximum);
+		long donateTime = System.nanoTime() - start;
+		long donateSteps = scheduler.donationSteps - steps;
+
+		for (int i = 0; i < length; i++)
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) == priorityMaximum);
+		Lib.assertTrue(donateSteps <= length + 1);
+
+		steps = scheduler.donationSteps;
+		start = System.nanoTime();
+		scheduler.setPriority(top, priorityDefault);
+		long withdrawTime = System.nanoTime() - start;
+		long withdrawSteps = scheduler.donationSteps - steps;
+
+		for (int i = 0; i < length; i++)
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) == priorityDefault);
+		Lib.assertTrue(withdrawSteps <= length + 1);
+
+		// threads[1] came back to its level after the crowd on locks[0]
+		for (int j = 0; j < crowd; j++)
+			Lib.assertTrue(locks[0].nextThread() == firstCrowd[j]);
+		Lib.assertTrue(locks[0].nextThread() == threads[1]);
+
+		Machine.interrupt().restore(intStatus);
+		System.out.println("crowdedChainTest: chain of " + length + ", crowds of "
+				+ crowd + ", " + donateSteps + " steps, " + donateTime / 1000
+				+ " us to donate, " + withdrawSteps + " steps, "
+				+ withdrawTime / 1000 + " us to withdraw");
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -126,7 +298,10 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+	 * are kept in one FIFO per priority level, and a bitmap records which
+	 * levels are non-empty, so that adding a thread and picking the next one
+	 * take constant time regardless of how many threads are waiting.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +320,40 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			if (owner != null)
+				owner.release(this);
+
+			ThreadState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			remove(next);
+			next.waitingOn = null;
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Take a thread off its level, and if that lowers the priority this
+		 * queue donates, take it back from the owner.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			int oldMaximum = getMaximumPriority();
+			remove(state);
+			state.waitingOn = null;
+
+			if (transferPriority && owner != null)
+				owner.moveDonation(oldMaximum, getMaximumPriority());
+
+			return true;
 		}
 
 		/**
@@ -156,13 +363,78 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (occupied == 0)
+				return null;
+
+			return heads[topLevel()];
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if no thread is waiting.
+		 * 
+		 * @return the priority this queue donates to its owner.
+		 */
+		protected int getMaximumPriority() {
+			if (occupied == 0)
+				return priorityMinimum;
+
+			return topLevel() + priorityMinimum;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int level = numLevels - 1; level >= 0; level--) {
+				for (ThreadState s = heads[level]; s != null; s = s.next)
+					System.out.print(s.thread + " ");
+			}
+		}
+
+		private int topLevel() {
+			return 31 - Integer.numberOfLeadingZeros(occupied);
+		}
+
+		/**
+		 * Add a waiting thread at the back of the level of its effective
+		 * priority. A thread that is moved to a new level while waiting also
+		 * goes to the back, as though it had just started waiting at its new
+		 * priority, so that moving it takes constant time.
+		 */
+		private void add(ThreadState state) {
+			int level = state.effectivePriority - priorityMinimum;
+			state.level = level;
+
+			state.prev = tails[level];
+			state.next = null;
+
+			if (tails[level] == null)
+				heads[level] = state;
+			else
+				tails[level].next = state;
+
+			tails[level] = state;
+
+			occupied |= 1 << level;
+		}
+
+		private void remove(ThreadState state) {
+			int level = state.level;
+
+			if (state.prev == null)
+				heads[level] = state.next;
+			else
+				state.prev.next = state.next;
+
+			if (state.next == null)
+				tails[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			state.prev = state.next = null;
+
+			if (heads[level] == null)
+				occupied &= ~(1 << level);
 		}
 
 		/**
@@ -170,8 +442,29 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers priority.
+		 */
+		private ThreadState owner = null;
+
+		private ThreadState[] heads = new ThreadState[numLevels];
+
+		private ThreadState[] tails = new ThreadState[numLevels];
+
+		/** Bit <i>i</i> is set if level <i>i</i> has a waiting thread. */
+		private int occupied = 0;
 	}
 
+	/**
+	 * The number of distinct priority levels, which must fit in the bitmap
+	 * of a <tt>PriorityQueue</tt>.
+	 */
+	private static final int numLevels = priorityMaximum - priorityMinimum + 1;
+
+	/** The number of threads visited while propagating priority changes. */
+	private long donationSteps = 0;
+
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
@@ -202,13 +495,14 @@ public class PriorityScheduler extends Scheduler {
 		}
 
 		/**
-		 * Return the effective priority of the associated thread.
+		 * Return the effective priority of the associated thread. This is
+		 * cached, and only recomputed when the priority of this thread or of a
+		 * thread waiting on a queue it owns changes.
 		 * 
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +516,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +532,16 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+
+			int oldMaximum = waitQueue.getMaximumPriority();
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.moveDonation(oldMaximum,
+						waitQueue.getMaximumPriority());
 		}
 
 		/**
@@ -252,7 +555,105 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			addDonation(waitQueue.getMaximumPriority());
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread gives up whatever is guarded by
+		 * <tt>waitQueue</tt>, so that it no longer receives priority from the
+		 * threads waiting on it.
+		 */
+		private void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			removeDonation(waitQueue.getMaximumPriority());
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Record that a queue this thread holds now donates <i>newPriority</i>
+		 * instead of <i>oldPriority</i>, and propagate the effect.
+		 */
+		private void moveDonation(int oldPriority, int newPriority) {
+			if (oldPriority == newPriority)
+				return;
+
+			removeDonation(oldPriority);
+			addDonation(newPriority);
+
+			updateEffectivePriority();
+		}
+
+		private void addDonation(int priority) {
+			int level = priority - priorityMinimum;
+			if (donations[level]++ == 0)
+				donated |= 1 << level;
+		}
+
+		private void removeDonation(int priority) {
+			int level = priority - priorityMinimum;
+			Lib.assertTrue(donations[level] > 0);
+			if (--donations[level] == 0)
+				donated &= ~(1 << level);
+		}
+
+		/**
+		 * Bring the cached effective priority of this thread up to date with
+		 * its priority and its donations. If it changed, move this thread to
+		 * its new level in the queue it is waiting on, and if that changes the
+		 * priority that queue donates, adjust the owner's donations and
+		 * continue with the owner. Each step takes constant time, so the cost
+		 * is proportional to how far along the wait-for chain the change
+		 * reaches.
+		 */
+		private void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (true) {
+				donationSteps++;
+
+				int effective = state.priority;
+				if (state.donated != 0)
+					effective = Math.max(effective, priorityMinimum + 31
+							- Integer.numberOfLeadingZeros(state.donated));
+
+				if (effective == state.effectivePriority)
+					return;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null) {
+					state.effectivePriority = effective;
+					return;
+				}
+
+				int oldMaximum = queue.getMaximumPriority();
+				queue.remove(state);
+				state.effectivePriority = effective;
+				queue.add(state);
+
+				ThreadState owner = queue.owner;
+				if (!queue.transferPriority || owner == null)
+					return;
+
+				int newMaximum = queue.getMaximumPriority();
+				if (newMaximum == oldMaximum)
+					return;
+
+				owner.removeDonation(oldMaximum);
+				owner.addDonation(newMaximum);
+				state = owner;
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +661,25 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/**
+		 * The number of queues owned by the associated thread that donate each
+		 * priority, and a bitmap of the priorities donated by at least one of
+		 * them.
+		 */
+		private int[] donations = new int[numLevels];
+
+		private int donated = 0;
+
+		/** Links to the threads before and after this one at its level. */
+		private ThreadState prev = null, next = null;
+
+		private int level;
 	}
 }
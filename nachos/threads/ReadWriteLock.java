@@ -0,0 +1,250 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held by any number of readers at once, or by
+ * one writer.
+ * 
+ * <p>
+ * Writers are preferred: once a writer is waiting, readers that arrive after
+ * it wait until it is done, so a steady stream of readers cannot starve
+ * writers. A writer holds an internal <tt>Lock</tt> while it waits for the
+ * readers to leave and while it writes, and readers pass through that lock on
+ * the way in. Threads waiting for a writer therefore donate priority to it as
+ * they would for a <tt>Lock</tt>. A writer waiting for readers to leave
+ * donates its priority to one of them at a time, the one that has been inside
+ * longest, through a queue that transfers priority and is handed on as each
+ * such reader leaves.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock. It is initially not held.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Acquire this lock for reading, waiting while a writer holds it or is
+	 * waiting for it. The current thread must not hold it for writing.
+	 */
+	public void acquireRead() {
+		writeLock.acquire();
+
+		boolean intStatus = Machine.interrupt().disable();
+		readers.add(KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
+
+		writeLock.release();
+	}
+
+	/**
+	 * Release this lock after reading. A writer waiting for the last reader to
+	 * leave is woken. If the reader receiving its priority leaves first, the
+	 * donation moves on to the reader that has been inside longest.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		boolean donee = (readers.getFirst() == thread);
+		Lib.assertTrue(readers.remove(thread));
+
+		if (drainingWriter != null && donee) {
+			Lib.assertTrue(drainQueue.remove(drainingWriter));
+
+			if (readers.isEmpty()) {
+				// with no thread waiting, this only gives up ownership
+				Lib.assertTrue(drainQueue.nextThread() == null);
+				drainingWriter.ready();
+				drainingWriter = null;
+			}
+			else {
+				drainQueue.acquire(readers.getFirst());
+				drainQueue.waitForAccess(drainingWriter);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing, waiting until no thread holds it. New
+	 * readers wait from the moment this is called.
+	 */
+	public void acquireWrite() {
+		writeLock.acquire();
+
+		boolean intStatus = Machine.interrupt().disable();
+		if (!readers.isEmpty()) {
+			drainingWriter = KThread.currentThread();
+			drainQueue.acquire(readers.getFirst());
+			drainQueue.waitForAccess(drainingWriter);
+			KThread.sleep();
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after writing.
+	 */
+	public void releaseWrite() {
+		writeLock.release();
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 * 
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return writeLock.isHeldByCurrentThread() && readers.isEmpty();
+	}
+
+	/**
+	 * Test that this module is working. Readers must overlap each other, and a
+	 * writer must exclude them and get in ahead of readers that arrive after
+	 * it.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock rw = new ReadWriteLock();
+		final int[] inside = new int[2]; // readers, writers
+		final int[] maxReaders = new int[1];
+		final StringBuffer order = new StringBuffer();
+
+		class Reader implements Runnable {
+			Reader(String name) {
+				this.name = name;
+			}
+
+			public void run() {
+				rw.acquireRead();
+				Lib.assertTrue(inside[1] == 0);
+				inside[0]++;
+				maxReaders[0] = Math.max(maxReaders[0], inside[0]);
+				order.append(name);
+				ThreadedKernel.alarm.waitUntil(1000);
+				inside[0]--;
+				rw.releaseRead();
+			}
+
+			private String name;
+		}
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				Lib.assertTrue(inside[0] == 0 && inside[1] == 0);
+				inside[1]++;
+				order.append("W");
+				ThreadedKernel.alarm.waitUntil(1000);
+				inside[1]--;
+				rw.releaseWrite();
+			}
+		}).setName("writer");
+
+		KThread r1 = new KThread(new Reader("a")).setName("reader a");
+		KThread r2 = new KThread(new Reader("b")).setName("reader b");
+		KThread r3 = new KThread(new Reader("c")).setName("reader c");
+
+		r1.fork();
+		r2.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		writer.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		r3.fork();
+
+		r1.join();
+		r2.join();
+		r3.join();
+		writer.join();
+
+		System.out.println("ReadWriteLock.selfTest: order " + order
+				+ ", at most " + maxReaders[0] + " readers at once");
+		Lib.assertTrue(maxReaders[0] == 2);
+		Lib.assertTrue(order.indexOf("W") == 2 && order.indexOf("c") == 3);
+
+		donationTest();
+	}
+
+	/**
+	 * Have two low-priority readers hold the lock while a high-priority writer
+	 * waits for them to leave. Check that the writer's priority is donated to
+	 * the first reader, and then to the second once the first has left.
+	 */
+	private static void donationTest() {
+		if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+			return;
+
+		final Scheduler scheduler = ThreadedKernel.scheduler;
+		final ReadWriteLock rw = new ReadWriteLock();
+		final Semaphore[] leave = { new Semaphore(0), new Semaphore(0) };
+
+		KThread[] readers = new KThread[leave.length];
+		for (int i = 0; i < readers.length; i++) {
+			final Semaphore done = leave[i];
+			readers[i] = new KThread(new Runnable() {
+				public void run() {
+					rw.acquireRead();
+					done.P();
+					rw.releaseRead();
+				}
+			}).setName("low reader " + i);
+		}
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				rw.releaseWrite();
+			}
+		}).setName("high writer");
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < readers.length; i++)
+			scheduler.setPriority(readers[i], 1);
+		scheduler.setPriority(writer, 7);
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < readers.length; i++)
+			readers[i].fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		writer.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority(readers[0]) >= 7);
+		Lib.assertTrue(scheduler.getEffectivePriority(readers[1]) == 1);
+		Machine.interrupt().restore(intStatus);
+
+		leave[0].V();
+		readers[0].join();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority(readers[1]) >= 7);
+		Machine.interrupt().restore(intStatus);
+
+		leave[1].V();
+		readers[1].join();
+		writer.join();
+
+		System.out.println("ReadWriteLock.donationTest: ok");
+	}
+
+	/** Held by a writer, and briefly by each arriving reader. */
+	private Lock writeLock = new Lock();
+
+	/** The readers holding this lock, in the order they got in. */
+	private LinkedList<KThread> readers = new LinkedList<KThread>();
+
+	/** The writer waiting for the readers to leave, if any. */
+	private KThread drainingWriter = null;
+
+	/**
+	 * Holds the draining writer, and is owned by the first reader so that the
+	 * writer's priority is donated to it.
+	 */
+	private ThreadQueue drainQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
@@ -1,20 +1,39 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+
 /**
  * A <i>Rendezvous</i> allows threads to synchronously exchange values.
+ * 
+ * <p>
+ * Tags are spread by hash over independently locked buckets, so exchanges on
+ * different tags rarely contend. Each exchange in progress has a slot holding
+ * the values as <tt>int</tt>s. Slots are kept in a pool per bucket once their
+ * exchange is over, so exchanging does not allocate once the pool has grown
+ * to the number of exchanges that are in progress at once.
+ * 
+ * <p>
+ * Besides exchanges between two threads, any number of threads can exchange
+ * values on a tag at once, each getting all of the values, as at a barrier.
  */
 public class Rendezvous {
     /**
      * Allocate a new Rendezvous.
      */
     public Rendezvous () {
-        rLock = new Lock();
-        // condition = new Condition(rLock);
-        map = new HashMap<Integer, ArrayList<Object>>(); 
+        this(16);
+    }
 
+    /**
+     * Allocate a new Rendezvous with the specified number of buckets.
+     *
+     * @param buckets the number of buckets, which is rounded up to a power
+     * of two.
+     */
+    public Rendezvous (int buckets) {
+        locks = new StripedLock(buckets);
+        active = new Slot[locks.stripes()];
+        free = new Slot[locks.stripes()];
     }
 
     /**
@@ -34,28 +53,144 @@ public class Rendezvous {
      * @param value the integer to exchange.
      */
     public int exchange (int tag, int value) {
-        ArrayList<Object> list = new ArrayList<Object>();
-        rLock.acquire();
-        if(!map.containsKey(tag)){
-            list.add(new Condition(rLock)); 
-            list.add(value);
-            map.put(tag, list);
-            ( (Condition) list.get(0)).sleep();
-            list = map.get(tag);
-            map.remove(tag);
-            rLock.release();
-            return (Integer)list.get(2);
+        int b = locks.index(tag);
+        Lock lock = locks.get(tag);
+
+        lock.acquire();
+        Slot slot = open(b, lock, tag, 2);
+        int index = arrive(slot, value);
+        int other = slot.values[1 - index];
+        leave(b, slot);
+        lock.release();
+
+        return other;
+    }
+
+    /**
+     * Synchronously exchange a value with <i>parties</i> - 1 other threads.
+     * Each thread blocks until the last of them arrives, and then every one
+     * gets all of their values, in the order the threads arrived. A tag must
+     * not be used with different numbers of parties at the same time.
+     *
+     * @param tag the synchronization tag.
+     * @param value the integer to exchange.
+     * @param parties the number of threads taking part, at least two.
+     * @param values an array of at least <i>parties</i> elements, into which
+     * the values are copied.
+     * @return the index in <i>values</i> of the current thread's value.
+     */
+    public int exchange (int tag, int value, int parties, int[] values) {
+        Lib.assertTrue(parties >= 2 && values.length >= parties);
+
+        int b = locks.index(tag);
+        Lock lock = locks.get(tag);
+
+        lock.acquire();
+        Slot slot = open(b, lock, tag, parties);
+        int index = arrive(slot, value);
+        System.arraycopy(slot.values, 0, values, 0, parties);
+        leave(b, slot);
+        lock.release();
+
+        return index;
+    }
+
+    /**
+     * Return the slot for the exchange in progress on <i>tag</i>, starting
+     * one with a slot from the pool if there is none. The bucket lock must be
+     * held.
+     */
+    private Slot open (int b, Lock lock, int tag, int parties) {
+        for (Slot slot = active[b]; slot != null; slot = slot.next) {
+            if (slot.tag == tag) {
+                Lib.assertTrue(slot.parties == parties);
+                return slot;
+            }
+        }
+
+        Slot slot = free[b];
+        if (slot != null)
+            free[b] = slot.next;
+        else
+            slot = new Slot(lock);
+
+        slot.tag = tag;
+        slot.parties = parties;
+        slot.arrived = 0;
+        if (slot.values.length < parties)
+            slot.values = new int[parties];
+
+        slot.next = active[b];
+        active[b] = slot;
+
+        return slot;
+    }
+
+    /**
+     * Add a value to an exchange and wait for the rest of the parties. The
+     * last to arrive takes the slot out of its bucket, so the next exchange
+     * on the tag gets a slot of its own.
+     *
+     * @return the index of the value.
+     */
+    private int arrive (Slot slot, int value) {
+        int index = slot.arrived++;
+        slot.values[index] = value;
+
+        if (slot.arrived == slot.parties) {
+            int b = locks.index(slot.tag);
+            Slot prev = null;
+            for (Slot s = active[b]; s != slot; s = s.next)
+                prev = s;
+            if (prev == null)
+                active[b] = slot.next;
+            else
+                prev.next = slot.next;
+
+            slot.leaving = slot.parties;
+            slot.arrivedAll.wakeAll();
+        }
+        else {
+            while (slot.arrived < slot.parties)
+                slot.arrivedAll.sleep();
+        }
+
+        return index;
+    }
+
+    /**
+     * Note that a party is done reading an exchange's values. The last to
+     * leave returns the slot to the pool.
+     */
+    private void leave (int b, Slot slot) {
+        if (--slot.leaving == 0) {
+            slot.next = free[b];
+            free[b] = slot;
         }
-        else{
-            list = map.get(tag);
-            list.add(value);
-            ( (Condition) list.get(0)).wake();
+    }
+
+    /** The state of one exchange, reused for later ones on the same bucket. */
+    private static class Slot {
+        Slot (Lock lock) {
+            arrivedAll = new Condition2(lock);
         }
 
-        rLock.release();
-        // map.remove(tag);
-        return (Integer) list.get(1);
+        int tag;
+
+        /** The number of threads taking part, and how many have arrived. */
+        int parties, arrived;
+
+        /** The number of threads yet to read the values. */
+        int leaving;
+
+        int[] values = new int[2];
+
+        Condition2 arrivedAll;
+
+        /** The next slot in the bucket, or in its pool. */
+        Slot next;
     }
+
     // Place Rendezvous test code inside of the Rendezvous class.
 
     public static void rendezTest1() {
@@ -148,12 +283,79 @@ public class Rendezvous {
     }
     // Invoke Rendezvous.selfTest() from ThreadedKernel.selfTest()
 
+    // Threads on many tags exchange repeatedly, and a group of threads
+    // exchanges all its values at once.
+    public static void rendezTest3() {
+	final Rendezvous r = new Rendezvous(4);
+	final int numTags = 8, rounds = 20;
+
+	KThread[] threads = new KThread[numTags * 2];
+	for (int i = 0; i < threads.length; i++) {
+	    final int tag = i / 2;
+	    final int me = i;
+	    threads[i] = new KThread( new Runnable () {
+		    public void run() {
+			for (int round = 0; round < rounds; round++) {
+			    int recv = r.exchange (tag, me * 1000 + round);
+			    Lib.assertTrue (recv == (me ^ 1) * 1000 + round,
+					    "Was expecting " + ((me ^ 1) * 1000 + round) + " but received " + recv);
+			}
+		    }
+		});
+	    threads[i].setName("x" + i);
+	    threads[i].fork();
+	}
+	for (int i = 0; i < threads.length; i++)
+	    threads[i].join();
+
+	// only exchanges in progress at once needed a slot: at most two per
+	// tag, since a round can start before the last one's waiter has left
+	int pooled = 0;
+	for (int b = 0; b < r.free.length; b++) {
+	    Lib.assertTrue (r.active[b] == null);
+	    for (Slot slot = r.free[b]; slot != null; slot = slot.next)
+		pooled++;
+	}
+	Lib.assertTrue (pooled <= 2 * numTags, "Pooled " + pooled + " slots");
+
+	final int parties = 5;
+	final int[] sum = new int[1];
+	KThread[] group = new KThread[parties];
+	for (int i = 0; i < parties; i++) {
+	    final int send = i + 1;
+	    group[i] = new KThread( new Runnable () {
+		    public void run() {
+			int[] values = new int[parties];
+			int index = r.exchange (7, send, parties, values);
+			Lib.assertTrue (values[index] == send);
+			int total = 0;
+			for (int j = 0; j < parties; j++)
+			    total += values[j];
+			Lib.assertTrue (total == parties * (parties + 1) / 2);
+			sum[0] += total;
+		    }
+		});
+	    group[i].setName("g" + i);
+	    group[i].fork();
+	}
+	for (int i = 0; i < parties; i++)
+	    group[i].join();
+	Lib.assertTrue (sum[0] == parties * parties * (parties + 1) / 2);
+
+	System.out.println ("rendezTest3 passed, " + pooled + " slots pooled");
+    }
+
     public static void selfTest() {
 	// place calls to your Rendezvous tests that you implement here
 	rendezTest1();
+	rendezTest3();
     }
 
-    private Lock rLock;
-    private HashMap<Integer, ArrayList<Object>> map;
-    // private boolean flag;
+    private StripedLock locks;
+
+    /** The exchanges in progress in each bucket. */
+    private Slot[] active;
+
+    /** The pool of slots for each bucket. */
+    private Slot[] free;
 }
@@ -151,4 +151,12 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled.
+	 * A scheduler that preempts threads on its own schedule can yield the
+	 * current thread from here. The default does nothing.
+	 */
+	public void timerInterrupt() {
+	}
 }
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashSet;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value. A
  * semaphore has only two operations:
@@ -48,6 +50,41 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically wait at most <i>timeout</i> ticks for this semaphore to
+	 * become non-zero, and decrement it if it does. A thread that gives up
+	 * waiting is taken off the semaphore's wait queue.
+	 * 
+	 * @param timeout the maximum number of ticks to wait, or 0 not to wait.
+	 * @return <tt>true</tt> if this semaphore was decremented.
+	 */
+	public boolean P(long timeout) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean decremented = true;
+
+		if (value > 0) {
+			value--;
+		}
+		else if (timeout <= 0) {
+			decremented = false;
+		}
+		else {
+			final KThread thread = KThread.currentThread();
+			waitQueue.waitForAccess(thread);
+			timedWaiters.add(thread);
+			decremented = !ThreadedKernel.alarm.waitUntil(timeout,
+					new Runnable() {
+						public void run() {
+							Lib.assertTrue(waitQueue.remove(thread));
+						}
+					});
+			timedWaiters.remove(thread);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return decremented;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
@@ -57,7 +94,11 @@ public class Semaphore {
 
 		KThread thread = waitQueue.nextThread();
 		if (thread != null) {
-			thread.ready();
+			// a thread in P(timeout) is woken by cancelling its timer
+			if (timedWaiters.remove(thread))
+				Lib.assertTrue(ThreadedKernel.alarm.cancel(thread));
+			else
+				thread.ready();
 		}
 		else {
 			value++;
@@ -97,10 +138,43 @@ public class Semaphore {
 			ping.V();
 			pong.P();
 		}
+
+		timedTest();
+	}
+
+	/**
+	 * Time out in <tt>P(timeout)</tt>, then check that the timed-out waiter
+	 * left no stale entry behind: a later <tt>V()</tt> must be kept for the
+	 * next <tt>P()</tt> instead of going to the thread that gave up.
+	 */
+	private static void timedTest() {
+		final Semaphore sem = new Semaphore(0);
+
+		long t0 = Machine.timer().getTime();
+		Lib.assertTrue(!sem.P(0));
+		Lib.assertTrue(!sem.P(2000));
+		Lib.assertTrue(Machine.timer().getTime() - t0 >= 2000);
+
+		sem.V();
+		Lib.assertTrue(sem.P(0));
+
+		KThread waker = new KThread(new Runnable() {
+			public void run() {
+				sem.V();
+			}
+		}).setName("waker");
+		waker.fork();
+		Lib.assertTrue(sem.P(100000));
+		waker.join();
+
+		System.out.println("Semaphore.timedTest: ok");
 	}
 
 	private int value;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
+
+	/** The threads waiting in <tt>P(long)</tt> with a timer set. */
+	private HashSet<KThread> timedWaiters = new HashSet<KThread>();
 }
@@ -0,0 +1,135 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A fixed set of <tt>Lock</tt>s, with keys such as page numbers, file names
+ * or ports spread over them by hash. Threads working on different keys then
+ * rarely contend, without a lock being allocated for every key. Two keys may
+ * share a lock, so a thread must not hold the lock of one key while acquiring
+ * that of another, unless it always acquires them in index order.
+ */
+public class StripedLock {
+	/**
+	 * Allocate a new striped lock.
+	 * 
+	 * @param stripes the number of locks, which is rounded up to a power of
+	 * two.
+	 */
+	public StripedLock(int stripes) {
+		Lib.assertTrue(stripes > 0 && stripes <= 1 << 30);
+
+		locks = new Lock[Integer.highestOneBit(stripes * 2 - 1)];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Lock();
+	}
+
+	/**
+	 * Return the lock for the specified key.
+	 * 
+	 * @param key the key.
+	 * @return the lock that guards <i>key</i>.
+	 */
+	public Lock get(int key) {
+		return locks[index(key)];
+	}
+
+	/**
+	 * Return the lock for the specified key.
+	 * 
+	 * @param key the key, which must not be <tt>null</tt>.
+	 * @return the lock that guards <i>key</i>.
+	 */
+	public Lock get(Object key) {
+		return get(key.hashCode());
+	}
+
+	/**
+	 * Acquire the lock for the specified key.
+	 * 
+	 * @param key the key.
+	 */
+	public void acquire(int key) {
+		get(key).acquire();
+	}
+
+	/**
+	 * Release the lock for the specified key.
+	 * 
+	 * @param key the key.
+	 */
+	public void release(int key) {
+		get(key).release();
+	}
+
+	/**
+	 * Return the index of the lock for a key. The hash is mixed first, so that
+	 * keys that differ only in their high bits, such as page-aligned
+	 * addresses, still spread over all the locks.
+	 * 
+	 * @param key the key.
+	 * @return the index of its lock, less than the number of locks.
+	 */
+	public int index(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (locks.length - 1);
+	}
+
+	/**
+	 * Return the number of locks.
+	 * 
+	 * @return the number of locks.
+	 */
+	public int stripes() {
+		return locks.length;
+	}
+
+	/**
+	 * Test that this module is working. Threads on different stripes must be
+	 * able to hold their locks at once, and threads on the same key must not.
+	 */
+	public static void selfTest() {
+		final StripedLock striped = new StripedLock(10);
+		Lib.assertTrue(striped.stripes() == 16);
+
+		// find two keys on different stripes
+		int other = 1;
+		while (striped.index(other) == striped.index(0))
+			other++;
+		final int key2 = other;
+
+		final int[] holding = new int[1];
+		final int[] maxHolding = new int[1];
+		final int[] sameKey = new int[1];
+
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int key = (i % 2 == 0) ? 0 : key2;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					striped.acquire(key);
+					holding[0]++;
+					maxHolding[0] = Math.max(maxHolding[0], holding[0]);
+					if (key == 0)
+						Lib.assertTrue(++sameKey[0] == 1);
+					ThreadedKernel.alarm.waitUntil(500);
+					if (key == 0)
+						sameKey[0]--;
+					holding[0]--;
+					striped.release(key);
+				}
+			}).setName("striped" + i);
+			threads[i].fork();
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Lib.assertTrue(maxHolding[0] == 2);
+		Lib.assertTrue(striped.get("a.coff") == striped.get("a.coff"));
+
+		System.out.println("StripedLock.selfTest passed");
+	}
+
+	private Lock[] locks;
+}
@@ -90,6 +90,18 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Stop the specified thread waiting for access, as if it had never called
+	 * <tt>waitForAccess()</tt>. This is used when a thread gives up waiting,
+	 * for example because a timed wait has expired. If this queue transfers
+	 * priority, the thread no longer donates priority to the thread that has
+	 * access.
+	 * 
+	 * @param thread the thread that is to stop waiting.
+	 * @return <tt>true</tt> if the thread was waiting on this queue.
+	 */
+	public abstract boolean remove(KThread thread);
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
@@ -49,11 +49,24 @@ public class ThreadedKernel extends Kernel {
  @Override
 	public void selfTest() {
 		// KThread.selfTest();
+		// KThread.forkJoinBenchmark(100000);
+		// KThread.contextSwitchBenchmark(100000);
 		// Semaphore.selfTest();
+		// Lock.selfTest();
+		// ReadWriteLock.selfTest();
+		// StripedLock.selfTest();
+		// PriorityScheduler.selfTest();
+		// LotteryScheduler.selfTest();
+		// MLFQScheduler.selfTest();
+		// EDFScheduler.selfTest();
 		// SynchList.selfTest();
+		// Channel.selfTest();
+		// Communicator.selfTest();
 		// Alarm.selfTest();
 		// Condition2.selfTest();
 		// Condition2.cvTest5();
+		// Condition2.wakeAllBenchmark(300);
+		// Future.selfTest();
 		// Rendezvous.selfTest();
 
 
@@ -148,7 +148,7 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		rwLock.acquire();
+		rwLock.acquireRead();
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
@@ -165,7 +165,7 @@ public class UserProcess {
 
 			paddr = getPaddr(vaddr);
 			if (paddr < 0 || paddr >= memory.length) {
-				rwLock.release();
+				rwLock.releaseRead();
 				return -1;
 			}
 
@@ -180,7 +180,7 @@ public class UserProcess {
 
 		}
 
-		rwLock.release();
+		rwLock.releaseRead();
 		return amountCopied;
 	}
 
@@ -234,7 +234,7 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		rwLock.acquire();
+		rwLock.acquireWrite();
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
@@ -253,7 +253,7 @@ public class UserProcess {
 			// get the physical address from virtual adresss
 			paddr = getPaddr(vaddr);
 			if (paddr < 0 || paddr >= memory.length || !validWrite(vaddr)) {
-				rwLock.release();
+				rwLock.releaseWrite();
 				return amountWritten;
 			}
 
@@ -264,13 +264,14 @@ public class UserProcess {
 
 			// writes it to the data
 			System.arraycopy(data, offset + amountWritten, memory, paddr, amount);
+			Machine.processor().invalidatePage(Processor.pageFromAddress(paddr));
 			amountWritten += amount;
 			// offsets the virtual address
 			vaddr += amount;
 			// System.out.println("vaddr: " + vaddr);
 
 		}
-		rwLock.release();
+		rwLock.releaseWrite();
 		return amountWritten;
 	}
 
@@ -1002,5 +1003,6 @@ public class UserProcess {
 
 	protected Integer exitStatus = 0;
 
-	private Lock rwLock = new Lock();
+	/** Readers of this process's memory may copy from it at the same time. */
+	private ReadWriteLock rwLock = new ReadWriteLock();
 }
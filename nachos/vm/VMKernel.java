@@ -123,6 +123,76 @@ public class VMKernel extends UserKernel {
 		return true;
 	}
 
+	/**
+	 * Load a translation for the current process into the TLB, replacing
+	 * entries in round-robin order.
+	 * 
+	 * @param te the page table entry to load, which must be valid.
+	 * @param vpn the virtual page number it translates.
+	 * @param asid the address space ID of the process it belongs to.
+	 */
+	public static void loadTLBEntry(TranslationEntry te, int vpn, int asid) {
+		Processor processor = Machine.processor();
+		int number = nextTLBEntry;
+		nextTLBEntry = (nextTLBEntry + 1) % processor.getTLBSize();
+
+		syncTLBEntry(number, false);
+
+		// page table entries keep the spn in their vpn field, so copy it
+		TranslationEntry entry = new TranslationEntry(te);
+		entry.vpn = vpn;
+		entry.asid = asid;
+		processor.writeTLBEntry(number, entry);
+	}
+
+	/**
+	 * Invalidate every TLB entry belonging to the specified address space.
+	 * Called when a process exits, since its physical pages will be reused.
+	 */
+	public static void flushTLB(int asid) {
+		Processor processor = Machine.processor();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			if (processor.readTLBEntry(i).asid == asid)
+				syncTLBEntry(i, true);
+		}
+	}
+
+	//copy the used and dirty bits the processor set in the TLB back into the ipt
+	private static void syncTLB() {
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+			syncTLBEntry(i, false);
+	}
+
+	//copy the bits of one TLB entry back into the ipt, then clear its used bit
+	//(or the whole entry if invalidate is set) so the clock can see new accesses
+	private static void syncTLBEntry(int number, boolean invalidate) {
+		Processor processor = Machine.processor();
+		TranslationEntry entry = processor.readTLBEntry(number);
+		if (!entry.valid)
+			return;
+
+		TranslationEntry te = ipt[entry.ppn];
+		if (te != null && te.valid && te.ppn == entry.ppn) {
+			te.used |= entry.used;
+			te.dirty |= entry.dirty;
+		}
+
+		if (invalidate)
+			entry.valid = false;
+		entry.used = false;
+		processor.writeTLBEntry(number, entry);
+	}
+
+	//drop any TLB entry that translates to the given ppn
+	private static void invalidateTLB(int ppn) {
+		Processor processor = Machine.processor();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (entry.valid && entry.ppn == ppn)
+				syncTLBEntry(i, true);
+		}
+	}
+
 	//get idx of first free page
 	public static int clockPPN() {
 		evictLock.acquire();
@@ -131,6 +201,8 @@ public class VMKernel extends UserKernel {
 			evictLock.release();
 			return -1;
 		}
+		if (Machine.processor().hasTLB())
+			syncTLB();
 		int eidx = curEIDX;
 		int delta = Machine.processor().getNumPhysPages() >> 2;
 		int cidx = (curCIDX == -1) ? eidx + delta : curCIDX;
@@ -160,6 +232,8 @@ public class VMKernel extends UserKernel {
 		evictLock.acquire();
 		//get evicted entry
 		TranslationEntry evictedEntry = ipt[evictedIPTIndex];
+		if (Machine.processor().hasTLB())
+			invalidateTLB(evictedEntry.ppn);
 		evictedEntry.valid = false;
 		
 		int evictedPPN = evictedEntry.ppn;
@@ -259,6 +333,7 @@ public class VMKernel extends UserKernel {
 	private static boolean[] pinArray = new boolean[Machine.processor().getNumPhysPages()];	
 	private static int curEIDX = 0;
 	private static int curCIDX = -1;
+	private static int nextTLBEntry = 0;
 	private static Lock swapLock;
 	private static Lock evictLock;
 }
\ No newline at end of file
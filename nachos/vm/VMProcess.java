@@ -31,7 +31,11 @@ public class VMProcess extends UserProcess {
 	 */
  @Override
 	public void restoreState() {
-		super.restoreState();
+		// TLB entries are tagged with the process ID, so nothing to flush
+		if (Machine.processor().hasTLB())
+			Machine.processor().setASID(processID);
+		else
+			super.restoreState();
 	}
 
 	/**
@@ -81,6 +85,9 @@ public class VMProcess extends UserProcess {
 	 */
  @Override
 	protected void unloadSections() {
+		if (Machine.processor().hasTLB())
+			VMKernel.flushTLB(processID);
+
 		// go through pagetable and free all of the physical pages
 		for (int i = 0; i < pageTable.length; i++) {
 			TranslationEntry entry = pageTable[i];
@@ -112,12 +119,38 @@ public class VMProcess extends UserProcess {
 			int result2 = handlePageFault(processor.readRegister(Processor.regBadVAddr));
 			//do not advance PC so program attempts to read address again
 			break;
+		case Processor.exceptionTLBMiss:
+			handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+			break;
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * Handle a TLB miss by loading the translation for the faulting page into
+	 * the TLB, paging it in first if necessary.
+	 * 
+	 * @param vaddr the virtual address that missed in the TLB.
+	 */
+	private void handleTLBMiss(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null) {
+			super.handleException(Processor.exceptionTLBMiss);
+			return;
+		}
+
+		TranslationEntry te = pageTable[vpn];
+		if (!te.valid)
+			handlePageFault(vaddr);
+
+		//the page may have been evicted again if we blocked while paging in,
+		//in which case the instruction just misses again
+		if (te.valid)
+			VMKernel.loadTLBEntry(te, vpn, processID);
+	}
+
 	int handlePageFault(int vaddr) {
 
 		
@@ -142,6 +175,7 @@ public class VMProcess extends UserProcess {
 
 			//write from buffer to ppn
 			System.arraycopy(buffer, 0, Machine.processor().getMemory(), ppn*pageSize, pageSize);
+			Machine.processor().invalidatePage(ppn);
 
 			
 			//Free the SPN //DO WE DO THIS????? //I DONT THINK WE DO THIS
@@ -184,6 +218,7 @@ public class VMProcess extends UserProcess {
 		//System.out.println("Zero filling to fix page fault");
 		byte[] zeroArray = new byte[Processor.pageSize];
 		System.arraycopy(zeroArray, 0, Machine.processor().getMemory(), ppn*pageSize, pageSize);
+		Machine.processor().invalidatePage(ppn);
 		return -1;
 	}
 
@@ -266,6 +301,7 @@ public class VMProcess extends UserProcess {
 			if (!te.readOnly)
 			{
 				System.arraycopy(data, offset + amountWritten, memory, paddr, amount);
+				Machine.processor().invalidatePage(Processor.pageFromAddress(paddr));
 				amountWritten += amount;
 			}
 			///////////